@@ -1,9 +1,7 @@
 #!/usr/bin/env bash
 
 # Standard and Error outputs of this script are available in log of
-# email-bridge app.
-# If script returns 0 status code then output will be at DEBUG level,
-# otherwise you'll get it at ERROR level.
+# email-bridge app line by line, at INFO and WARN level respectively.
 
 # Print all available environment variables
 set
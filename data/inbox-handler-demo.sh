@@ -0,0 +1,21 @@
+#!/usr/bin/env bash
+
+# Demo of long-lived handler, see "inbox.script.persistent" property.
+# Handler reads paths of received files relative to inbox folder, one per
+# line; empty line ends a batch. Result of batch is reported by "DONE <code>"
+# line. Other output lines are available in log of email-bridge app.
+# Handler exits when its input is closed, i.e. when app stops.
+
+count=0
+while IFS= read -r file; do
+	if [ -z "$file" ]; then
+		# End of batch: no error
+		echo "Batch of $count file(s) is handled"
+		echo "DONE 0"
+		count=0
+	else
+		# Print file info
+		ls -l "$INBOX_FOLDER/$file"
+		count=$((count + 1))
+	fi
+done
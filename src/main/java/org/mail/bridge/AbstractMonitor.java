@@ -23,38 +23,40 @@
  */
 package org.mail.bridge;
 
-import org.mail.bridge.util.Utils;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 /**
  * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
  */
 @SuppressWarnings("UnusedReturnValue")
 public abstract class AbstractMonitor {
 
-	private final Map<Class<? extends Message<?>>, List<MonitorCallback<?>>> callbacks = new HashMap<>();
+	private static final int CALLBACK_THREADS = 2;
+	static final int CALLBACK_QUEUE_SIZE = 64;
+
+	private final EventBus events = new EventBus(getClass().getSimpleName() + "Events", CALLBACK_THREADS);
 
 	<T> AbstractMonitor addCallback(Class<? extends Message<T>> messageClass, MonitorCallback<T> callback) {
-		if (callback != null) {
-			List<MonitorCallback<?>> callbackList = callbacks.get(messageClass);
-			if (callbackList == null) {
-				callbackList = new ArrayList<>();
-				callbacks.put(messageClass, callbackList);
-			}
-			callbackList.add(callback);
-		}
+		if (callback != null) events.subscribe(messageClass, callback);
+		return this;
+	}
+
+	/**
+	 * Adds callback that is called asynchronously, so that it never stalls the thread that posts messages.
+	 */
+	<T> AbstractMonitor addCallback(Class<? extends Message<T>> messageClass, MonitorCallback<T> callback,
+			EventBus.Backpressure policy, int capacity) {
+		if (callback != null) events.subscribe(messageClass, callback, policy, capacity);
 		return this;
 	}
 
-	@SuppressWarnings({"unchecked", "SuspiciousMethodCalls"})
 	<T> void postMessage(Message<T> message) {
-		List callbackList = Utils.ensureEmpty(callbacks.get(message.getClass()));
-		for (MonitorCallback<T> callback : (List<MonitorCallback<T>>) callbackList)
-			callback.onMessage(message);
+		events.post(message);
+	}
+
+	/**
+	 * Stops asynchronous callbacks after delivery of already posted messages.
+	 */
+	void stopCallbacks() {
+		events.shutdown();
 	}
 
 	public abstract AbstractMonitor scan();
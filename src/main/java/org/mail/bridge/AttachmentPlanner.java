@@ -0,0 +1,235 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Groups prepared attachment files into email messages, so that every message fits the configured size limit.
+ * <p/>
+ * Sizes are compared in terms of MIME-encoded message size, i.e. with base64 and line-break overhead included.
+ * Files are packed by first-fit-decreasing strategy; only files that cannot fit any message by themselves are
+ * reported as oversized and have to be split into volumes.
+ * <p/>
+ * Planner may be also fed by files one by one, as soon as they are prepared, see {@link #offer(File)}.
+ * In this case messages are taken off as soon as they are filled enough, so that sending may start before
+ * the rest of files are prepared.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class AttachmentPlanner {
+
+	/** Approximate size of message headers and body. */
+	static final long MESSAGE_OVERHEAD = 4096;
+	/** Approximate size of MIME part headers of one attachment. */
+	static final long ATTACH_OVERHEAD = 512;
+	/** Max padding that can be added by encryption of a volume. */
+	static final long CIPHER_OVERHEAD = 16;
+	/** Fill ratio of message, starting from which it is considered as ready to be sent. */
+	static final double FILL_RATIO = 0.9;
+
+	private static final int B64_LINE = 76;
+	private static final int B64_EOL = 2;
+
+	static class Plan {
+		private final List<List<File>> messages;
+		private final List<File> oversized;
+
+		private Plan(List<List<File>> messages, List<File> oversized) {
+			this.messages = messages;
+			this.oversized = oversized;
+		}
+
+		List<List<File>> getMessages() {
+			return messages;
+		}
+
+		List<File> getOversized() {
+			return oversized;
+		}
+
+		@Override
+		public String toString() {
+			return "Plan {" + "messages=" + messages + ", oversized=" + oversized + '}';
+		}
+	}
+
+	private static class Bin {
+		private final List<Integer> indexes = new ArrayList<>();
+		private long size = MESSAGE_OVERHEAD;
+	}
+
+	private final long maxMessageSize;
+	private final List<File> pending = new ArrayList<>();
+
+	AttachmentPlanner(long maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Calculates the size of data after base64 encoding with MIME line breaks.
+	 *
+	 * @param size raw size of data in bytes
+	 * @return size of encoded data in bytes
+	 */
+	static long encodedSize(long size) {
+		long b64 = (size + 2) / 3 * 4;
+		return b64 + (b64 + B64_LINE - 1) / B64_LINE * B64_EOL;
+	}
+
+	/**
+	 * Calculates the space that attachment file occupies in email message.
+	 *
+	 * @param size raw size of attachment file in bytes
+	 * @return encoded size of attachment including its MIME headers
+	 */
+	static long attachmentSize(long size) {
+		return encodedSize(size) + ATTACH_OVERHEAD;
+	}
+
+	/**
+	 * Calculates the size of email message with given attachment files.
+	 *
+	 * @param files attachment files
+	 * @return encoded size of message in bytes
+	 */
+	static long messageSize(List<File> files) {
+		long size = MESSAGE_OVERHEAD;
+		for (File file : files)
+			size += attachmentSize(file.length());
+		return size;
+	}
+
+	/**
+	 * Calculates the max raw size of ZIP volume, so that encrypted and encoded volume fits into one message.
+	 *
+	 * @return volume size in bytes
+	 */
+	long getVolumeSize() {
+		long available = maxMessageSize - MESSAGE_OVERHEAD - ATTACH_OVERHEAD;
+		long b64 = available * B64_LINE / (B64_LINE + B64_EOL);
+		return b64 / 4 * 3 - CIPHER_OVERHEAD;
+	}
+
+	/**
+	 * Checks if attachment file of given raw size fits into one message alone.
+	 *
+	 * @param size raw size of attachment file in bytes
+	 * @return {@code true} if file should not be split
+	 */
+	boolean fits(long size) {
+		return MESSAGE_OVERHEAD + attachmentSize(size) <= maxMessageSize;
+	}
+
+	/**
+	 * Builds plan of messages for given prepared attachment files.
+	 * Files inside of each message, as well as messages themselves, keep the original order of files.
+	 *
+	 * @param files prepared attachment files
+	 * @return plan of messages
+	 */
+	Plan plan(final List<File> files) {
+		final List<Integer> order = new ArrayList<>(files.size());
+		final List<File> oversized = new ArrayList<>();
+		final long[] sizes = new long[files.size()];
+		for (int i = 0; i < sizes.length; ++i) {
+			sizes[i] = files.get(i).length();
+			if (fits(sizes[i])) order.add(i);
+			else oversized.add(files.get(i));
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int c = Long.compare(sizes[o2], sizes[o1]);
+				return c != 0 ? c : Integer.compare(o1, o2);
+			}
+		});
+
+		final List<Bin> bins = new ArrayList<>();
+		for (Integer index : order) {
+			long size = attachmentSize(sizes[index]);
+			Bin target = null;
+			for (Bin bin : bins)
+				if (bin.size + size <= maxMessageSize) {
+					target = bin;
+					break;
+				}
+			if (target == null) {
+				target = new Bin();
+				bins.add(target);
+			}
+			target.indexes.add(index);
+			target.size += size;
+		}
+
+		for (Bin bin : bins)
+			Collections.sort(bin.indexes);
+		Collections.sort(bins, new Comparator<Bin>() {
+			@Override
+			public int compare(Bin o1, Bin o2) {
+				return Integer.compare(o1.indexes.get(0), o2.indexes.get(0));
+			}
+		});
+
+		final List<List<File>> messages = new ArrayList<>(bins.size());
+		for (Bin bin : bins) {
+			List<File> message = new ArrayList<>(bin.indexes.size());
+			for (Integer index : bin.indexes)
+				message.add(files.get(index));
+			messages.add(message);
+		}
+		return new Plan(messages, oversized);
+	}
+
+	/**
+	 * Adds prepared attachment file to pending ones and takes off messages that are filled enough to be sent.
+	 *
+	 * @param file prepared attachment file that {@link #fits(long) fits} one message
+	 * @return messages that are ready to be sent, may be empty
+	 */
+	List<List<File>> offer(File file) {
+		if (!fits(file.length()))
+			throw new IllegalArgumentException("File '" + file.getAbsolutePath() + "' doesn't fit one message");
+		pending.add(file);
+		final List<List<File>> result = new ArrayList<>();
+		for (List<File> message : plan(pending).getMessages())
+			if (messageSize(message) >= maxMessageSize * FILL_RATIO) {
+				result.add(message);
+				pending.removeAll(message);
+			}
+		return result;
+	}
+
+	/**
+	 * Takes off all pending files grouped into messages.
+	 *
+	 * @return messages that are left to be sent, may be empty
+	 */
+	List<List<File>> flush() {
+		final List<List<File>> result = plan(pending).getMessages();
+		pending.clear();
+		return result;
+	}
+}
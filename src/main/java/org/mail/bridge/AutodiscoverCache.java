@@ -0,0 +1,189 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.mail.bridge.util.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.attribute.PosixFilePermission.*;
+
+/**
+ * File that keeps EWS URLs found by auto-discover per email address, so that auto-discover,
+ * which takes several seconds of redirects, is done once per TTL rather than on every (re)connect.
+ * <p/>
+ * File is a properties one with {@code <email>.url} and {@code <email>.time} entries, so it may be shared
+ * by several processes. Credentials are sent to cached URL, so it's written readable by owner only,
+ * and only {@code https} URLs are taken from it, as auto-discover itself accepts only them.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class AutodiscoverCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AutodiscoverCache.class);
+	private static final String URL = ".url";
+	private static final String TIME = ".time";
+
+	private final File file;
+	private final long ttl;
+	private final Clock clock;
+
+	/**
+	 * @param file file to keep URLs in
+	 * @param ttl time in milliseconds while URL is valid, 0 disables cache
+	 */
+	AutodiscoverCache(File file, long ttl) {
+		this(file, ttl, Clock.SYSTEM);
+	}
+
+	AutodiscoverCache(File file, long ttl, Clock clock) {
+		this.file = file;
+		this.ttl = ttl;
+		this.clock = clock;
+	}
+
+	static boolean isSecure(String url) {
+		return url.toLowerCase().startsWith("https://");
+	}
+
+	boolean isEnabled() {
+		return ttl > 0;
+	}
+
+	/**
+	 * @return cached URL of given email address, or {@code null} if there is no valid one
+	 */
+	synchronized URI get(String email) {
+		if (!isEnabled()) return null;
+		Properties properties = load();
+		String url = properties.getProperty(email + URL);
+		String time = properties.getProperty(email + TIME);
+		if (url == null || time == null) return null;
+		if (!isSecure(url)) {
+			LOG.warn("Cached EWS URL '{}' of '{}' isn't https one, it's dropped", url, email);
+			remove(email);
+			return null;
+		}
+		try {
+			long age = clock.millis() - Long.parseLong(time);
+			if (age < 0 || age > ttl) {
+				LOG.debug("Cached EWS URL of '{}' is expired", email);
+				return null;
+			}
+			LOG.debug("Cached EWS URL of '{}' is found, it was discovered {} minute(s) ago",
+					email, TimeUnit.MILLISECONDS.toMinutes(age));
+			return new URI(url);
+		} catch (NumberFormatException | URISyntaxException e) {
+			LOG.warn("Cached EWS URL of '{}' is invalid: {}", email, e.getMessage());
+			return null;
+		}
+	}
+
+	synchronized void put(String email, URI url) {
+		if (!isEnabled()) return;
+		Properties properties = load();
+		properties.setProperty(email + URL, url.toString());
+		properties.setProperty(email + TIME, String.valueOf(clock.millis()));
+		save(properties);
+	}
+
+	synchronized void remove(String email) {
+		if (!isEnabled()) return;
+		Properties properties = load();
+		if (properties.remove(email + URL) != null | properties.remove(email + TIME) != null) save(properties);
+	}
+
+	private boolean isPosix() {
+		return file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix");
+	}
+
+	private Properties load() {
+		Properties properties = new Properties();
+		if (file.isFile())
+			try (InputStream is = new FileInputStream(file)) {
+				if (isPosix()) {
+					Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(file.toPath());
+					if (permissions.contains(GROUP_WRITE) || permissions.contains(OTHERS_WRITE)) {
+						LOG.warn("File '{}' is writable by other users, it's ignored", file.getAbsolutePath());
+						return properties;
+					}
+				}
+				properties.load(is);
+			} catch (IOException e) {
+				LOG.warn("Cannot read file '{}': {}", file.getAbsolutePath(), e.getMessage());
+			}
+		return properties;
+	}
+
+	private void save(Properties properties) {
+		Path tmp = null;
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("Cannot create folder '" + dir.getAbsolutePath() + "'");
+			// Unpredictable name, created exclusively, so that nobody may substitute it with a link
+			tmp = isPosix() ? Files.createTempFile(dir.toPath(), "." + file.getName() + ".", ".tmp",
+					PosixFilePermissions.asFileAttribute(EnumSet.of(OWNER_READ, OWNER_WRITE)))
+					: Files.createTempFile(dir.toPath(), "." + file.getName() + ".", ".tmp");
+			try (OutputStream os = Files.newOutputStream(tmp)) {
+				properties.store(os, "EWS URLs found by auto-discover");
+			}
+			try {
+				Files.move(tmp, file.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file.toPath(), REPLACE_EXISTING);
+			}
+			tmp = null;
+		} catch (IOException e) {
+			LOG.warn("Cannot write file '{}': {}", file.getAbsolutePath(), e.getMessage());
+		} finally {
+			if (tmp != null)
+				try {
+					Files.deleteIfExists(tmp);
+				} catch (IOException e) {
+					LOG.debug("Cannot delete file '{}': {}", tmp, e.getMessage());
+				}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "AutodiscoverCache {" + "file='" + file.getAbsolutePath() + '\'' + ", ttl=" + ttl + '}';
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import java.io.File;
+
+/**
+ * One bridged pair of outbox and inbox folders with own tags, recipients and crypto settings.
+ * All channels of the process share EWS connections and subscription.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class Channel {
+
+	private volatile Config config;
+	private final OutboxIndex index;
+	// Every run of sender is a new session, so that receiver doesn't wait for numbers of the previous one
+	private final long session = System.currentTimeMillis();
+	private long sequence;
+
+	Channel(Config config) {
+		this.config = config;
+		index = new OutboxIndex(new File(config.getOutboxFolder()), new File(config.getOutboxIndexFile()));
+	}
+
+	String getName() {
+		return config.getChannelName();
+	}
+
+	Config getConfig() {
+		return config;
+	}
+
+	/**
+	 * Replaces configuration by reloaded one. Transfers that are in progress keep the previous one.
+	 */
+	void setConfig(Config config) {
+		this.config = config;
+	}
+
+	OutboxIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return sequence that the next sent email of channel is stamped with
+	 */
+	synchronized ReorderBuffer.Sequence getNextSequence() {
+		return new ReorderBuffer.Sequence(session, sequence + 1);
+	}
+
+	/**
+	 * Marks sequence as used, since email stamped with it was sent.
+	 */
+	synchronized void commitSequence(ReorderBuffer.Sequence sent) {
+		sequence = Math.max(sequence, sent.getNumber());
+	}
+
+	@Override
+	public String toString() {
+		return "Channel {" + "name='" + getName() + '\'' + ", outbox='" + config.getOutboxFolder() + '\'' +
+				", inbox='" + config.getInboxFolder() + '\'' + '}';
+	}
+}
@@ -30,11 +30,10 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Properties;
+import java.util.*;
+import java.util.regex.Pattern;
 
 /**
  * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
@@ -45,6 +44,18 @@ public class Config {
 	private static final String DEF_SUBJ = "[{0}]@{1,date,yyyy-MM-dd'T'HH:mm:ssZ}/{2}";
 	private static final String DEF_BODY = "Transporting file \"{2}\"<br>";
 	private static final String[] NO_ADDR = new String[0];
+	private static final String CHANNEL_PREFIX = "channel.";
+	// Settings that are captured by long-lived components, so they cannot be changed w/o restart
+	private static final String[] STATIC_SETTINGS = {
+			"CHANNEL", "EWS_EMAIL", "EWS_DOMAIN", "EWS_USERNAME", "EWS_PASSWORD", "EWS_SERVER", "EWS_VIEW_SIZE",
+			"EWS_SUBSCRIPTION_LIFETIME", "EWS_AUTODISCOVER_FILE", "EWS_AUTODISCOVER_TTL",
+			"PROXY_HOST", "PROXY_PORT", "PROXY_DOMAIN", "PROXY_USERNAME", "PROXY_PASSWORD",
+			"OUTBOX_FOLDER", "OUTBOX_INDEX_FILE", "OUTBOX_PREPARE_THREADS",
+			"INBOX_FOLDER", "INBOX_SCRIPT_THREADS", "INBOX_SCRIPT_PERSISTENT", "INBOX_SYNC",
+			"INBOX_DECODE_THREADS", "INBOX_ORDER_FILE", "EMAIL_INBOX_INDEX_FILE",
+			"EMAIL_SEND_RATE_BYTES", "EMAIL_SEND_RATE_BYTES_BURST", "EMAIL_SEND_RATE_MESSAGES",
+			"EMAIL_SEND_RATE_MESSAGES_BURST", "THREADS_VIRTUAL", "PID_FILE", "PID_FILE_KEEP",
+			"STORAGE_TEMP_BUDGET", "STORAGE_MIN_FREE"};
 
 	private final String ewsEmail;
 	private final String ewsDomain;
@@ -53,6 +64,8 @@ public class Config {
 	private final String ewsServer;
 	private final int ewsViewSize;
 	private final int ewsSubscriptionLifetime;
+	private final String ewsAutodiscoverFile;
+	private final int ewsAutodiscoverTtl;
 
 	private final String proxyHost;
 	private final int proxyPort;
@@ -63,10 +76,32 @@ public class Config {
 	private final String outboxFolder;
 	private final boolean outboxCleanup;
 	private final String outboxFileRegexp;
+	private final Pattern outboxFilePattern;
+	private final int outboxFileStableTime;
+	private final int outboxBatchFiles;
+	private final int outboxBatchSize;
+	private final int outboxBatchWait;
+	private final String outboxIndexFile;
+	private final int outboxUnitFiles;
+	private final int outboxUnitSize;
+	private final String outboxPriorityHighRegexp;
+	private final Pattern outboxPriorityHighPattern;
+	private final int outboxPriorityHighSize;
+	private final String outboxPriorityLowRegexp;
+	private final Pattern outboxPriorityLowPattern;
+	private final int outboxPriorityLowSize;
+	private final int outboxPrepareThreads;
 
 	private final String inboxFolder;
 	private final String inboxScript;
 	private final int inboxScriptStopCode;
+	private final int inboxScriptTimeout;
+	private final int inboxScriptThreads;
+	private final boolean inboxScriptPersistent;
+	private final InboxDelivery.Sync inboxSync;
+	private final int inboxDecodeThreads;
+	private final int inboxOrderTimeout;
+	private final String inboxOrderFile;
 
 	private final String emailTagIncoming;
 	private final String emailTagOutgoing;
@@ -76,18 +111,49 @@ public class Config {
 	private final String[] emailRecipientsCc;
 	private final String[] emailRecipientsBcc;
 	private final boolean emailInboxCleanup;
+	private final String emailInboxIndexFile;
 	private final String emailAttachPassword;
 	private final boolean emailAttachGzip;
 	private final String emailAttachExtGzip;
 	private final String emailAttachExtEnc;
 	private final int emailAttachMaxSize;
+	private final int emailSendRateBytes;
+	private final int emailSendRateBytesBurst;
+	private final int emailSendRateMessages;
+	private final int emailSendRateMessagesBurst;
+
+	private final boolean threadsVirtual;
 
 	private final String pidFile;
 	private final boolean pidFileKeep;
 
+	private final int storageTempBudget;
+	private final int storageInboxBudget;
+	private final int storageMinFree;
+	private final int storageEvictAge;
+
+	private final String channelName;
+	private final List<Config> channels;
+
 	public Config(String propertiesFileName) throws IOException {
-		Properties config = new Properties();
-		config.load(new FileInputStream(propertiesFileName));
+		this(loadProperties(propertiesFileName), "");
+	}
+
+	/**
+	 * @param properties all configuration properties
+	 * @param channelName name of channel, or empty string for root configuration
+	 */
+	private Config(Properties properties, String channelName) throws IOException {
+		// Channel settings are "channel.<name>.<property>" ones, the rest of properties are inherited from root
+		Properties config = properties;
+		if (!channelName.isEmpty()) {
+			config = new Properties(properties);
+			String prefix = CHANNEL_PREFIX + channelName + ".";
+			for (String name : properties.stringPropertyNames())
+				if (name.startsWith(prefix))
+					config.setProperty(name.substring(prefix.length()), properties.getProperty(name));
+		}
+		this.channelName = channelName;
 		String s;
 		int i;
 		MessageFormat mf;
@@ -103,6 +169,11 @@ public class Config {
 		i = s.isEmpty() ? 10 : Integer.parseInt(s);
 		if (i < 1 || i > 30) i = 10;
 		ewsSubscriptionLifetime = i;
+		s = config.getProperty("ews.autodiscover.file", "");
+		ewsAutodiscoverFile = s.isEmpty()
+				? System.getProperty("user.home") + File.separator + ".email-bridge" + File.separator + "autodiscover.properties" : s;
+		s = config.getProperty("ews.autodiscover.ttl", "");
+		ewsAutodiscoverTtl = s.isEmpty() ? 24 : Integer.parseInt(s);
 
 		proxyHost = config.getProperty("proxy.host", "");
 		s = config.getProperty("proxy.port", "");
@@ -116,12 +187,51 @@ public class Config {
 		s = config.getProperty("outbox.cleanup", "");
 		outboxCleanup = s.isEmpty() || Boolean.parseBoolean(s);
 		outboxFileRegexp = config.getProperty("outbox.file.regexp", "");
+		outboxFilePattern = outboxFileRegexp.isEmpty() ? null : Pattern.compile(outboxFileRegexp);
+		s = config.getProperty("outbox.file.stable.time", "");
+		outboxFileStableTime = s.isEmpty() ? 500 : Integer.parseInt(s);
+		s = config.getProperty("outbox.batch.files", "");
+		outboxBatchFiles = s.isEmpty() ? 0 : Integer.parseInt(s);
+		s = config.getProperty("outbox.batch.size", "");
+		outboxBatchSize = s.isEmpty() ? 0 : Integer.parseInt(s);
+		s = config.getProperty("outbox.batch.wait", "");
+		outboxBatchWait = s.isEmpty() ? 0 : Integer.parseInt(s);
+		s = config.getProperty("outbox.index.file", "");
+		outboxIndexFile = s.isEmpty() ? new File(outboxFolder).getAbsolutePath() + ".idx" : s;
+		s = config.getProperty("outbox.unit.files", "");
+		outboxUnitFiles = s.isEmpty() ? 500 : Integer.parseInt(s);
+		s = config.getProperty("outbox.unit.size", "");
+		outboxUnitSize = s.isEmpty() ? 100 : Integer.parseInt(s);
+		outboxPriorityHighRegexp = config.getProperty("outbox.priority.high.regexp", "");
+		outboxPriorityHighPattern = outboxPriorityHighRegexp.isEmpty() ? null : Pattern.compile(outboxPriorityHighRegexp);
+		s = config.getProperty("outbox.priority.high.size", "");
+		outboxPriorityHighSize = s.isEmpty() ? 0 : Integer.parseInt(s);
+		outboxPriorityLowRegexp = config.getProperty("outbox.priority.low.regexp", "");
+		outboxPriorityLowPattern = outboxPriorityLowRegexp.isEmpty() ? null : Pattern.compile(outboxPriorityLowRegexp);
+		s = config.getProperty("outbox.priority.low.size", "");
+		outboxPriorityLowSize = s.isEmpty() ? 0 : Integer.parseInt(s);
+		s = config.getProperty("outbox.prepare.threads", "");
+		outboxPrepareThreads = s.isEmpty() ? 0 : Integer.parseInt(s);
 
 		s = config.getProperty("inbox.folder", "");
 		inboxFolder = s.isEmpty() ? System.getProperty("java.io.tmpdir") + File.separator + "inbox" : s;
 		inboxScript = config.getProperty("inbox.script", "");
 		s = config.getProperty("inbox.script.stop.code", "");
 		inboxScriptStopCode = s.isEmpty() ? 0 : Integer.parseInt(s);
+		s = config.getProperty("inbox.script.timeout", "");
+		inboxScriptTimeout = s.isEmpty() ? 60 : Integer.parseInt(s);
+		s = config.getProperty("inbox.script.threads", "");
+		inboxScriptThreads = s.isEmpty() ? 1 : Math.max(1, Integer.parseInt(s));
+		s = config.getProperty("inbox.script.persistent", "");
+		inboxScriptPersistent = !s.isEmpty() && Boolean.parseBoolean(s);
+		s = config.getProperty("inbox.sync", "");
+		inboxSync = s.isEmpty() ? InboxDelivery.Sync.BATCH : InboxDelivery.Sync.valueOf(s.trim().toUpperCase());
+		s = config.getProperty("inbox.decode.threads", "");
+		inboxDecodeThreads = s.isEmpty() ? 2 : Math.max(1, Integer.parseInt(s));
+		s = config.getProperty("inbox.order.timeout", "");
+		inboxOrderTimeout = s.isEmpty() ? 300 : Integer.parseInt(s);
+		s = config.getProperty("inbox.order.file", "");
+		inboxOrderFile = s.isEmpty() ? new File(inboxFolder).getAbsolutePath() + ".seq" : s;
 
 		s = config.getProperty("email.tag.incoming", "");
 		emailTagIncoming = s.isEmpty() ? "email-bridge" : s;
@@ -150,6 +260,8 @@ public class Config {
 
 		s = config.getProperty("email.inbox.cleanup", "");
 		emailInboxCleanup = s.isEmpty() || Boolean.parseBoolean(s);
+		s = config.getProperty("email.inbox.index.file", "");
+		emailInboxIndexFile = s.isEmpty() ? new File(inboxFolder).getAbsolutePath() + ".processed" : s;
 
 		s = config.getProperty("email.recipients.to", "");
 		emailRecipientsTo = s.isEmpty() ? NO_ADDR : Utils.ensureEmpty(s.split("\\s*,\\s*"));
@@ -168,10 +280,66 @@ public class Config {
 		emailAttachExtEnc = checkExt(s.isEmpty() ? ".enc" : s);
 		s = config.getProperty("email.attach.max.size", "");
 		emailAttachMaxSize = s.isEmpty() ? 5 : Integer.parseInt(s);
+		s = config.getProperty("email.send.rate.bytes", "");
+		emailSendRateBytes = s.isEmpty() ? 0 : Integer.parseInt(s);
+		s = config.getProperty("email.send.rate.bytes.burst", "");
+		emailSendRateBytesBurst = s.isEmpty() ? emailSendRateBytes : Integer.parseInt(s);
+		s = config.getProperty("email.send.rate.messages", "");
+		emailSendRateMessages = s.isEmpty() ? 0 : Integer.parseInt(s);
+		s = config.getProperty("email.send.rate.messages.burst", "");
+		emailSendRateMessagesBurst = s.isEmpty() ? 1 : Integer.parseInt(s);
+
+		s = config.getProperty("threads.virtual", "");
+		threadsVirtual = !s.isEmpty() && Boolean.parseBoolean(s);
 
 		pidFile = config.getProperty("pid.file", "");
 		s = config.getProperty("pid.file.keep", "");
 		pidFileKeep = !s.isEmpty() && Boolean.parseBoolean(s);
+
+		s = config.getProperty("storage.temp.budget", "");
+		storageTempBudget = s.isEmpty() ? 0 : Integer.parseInt(s);
+		s = config.getProperty("storage.inbox.budget", "");
+		storageInboxBudget = s.isEmpty() ? 0 : Integer.parseInt(s);
+		s = config.getProperty("storage.min.free", "");
+		storageMinFree = s.isEmpty() ? 0 : Integer.parseInt(s);
+		s = config.getProperty("storage.evict.age", "");
+		storageEvictAge = s.isEmpty() ? 1440 : Integer.parseInt(s);
+
+		s = channelName.isEmpty() ? config.getProperty("channels", "") : "";
+		if (s.trim().isEmpty()) channels = Collections.singletonList(this);
+		else {
+			List<Config> list = new ArrayList<>();
+			for (String name : s.split(","))
+				if (!name.trim().isEmpty()) list.add(new Config(properties, name.trim()));
+			channels = Collections.unmodifiableList(list);
+			checkChannels();
+		}
+	}
+
+	private static Properties loadProperties(String propertiesFileName) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream is = new FileInputStream(propertiesFileName)) {
+			properties.load(is);
+		}
+		return properties;
+	}
+
+	private void checkChannels() throws IOException {
+		Map<String, String> tags = new HashMap<>();
+		Map<String, String> folders = new HashMap<>();
+		for (Config channel : channels) {
+			String name = channel.getChannelName();
+			String other = tags.put(channel.getEmailTagIncoming(), name);
+			if (other != null)
+				throw new IOException(String.format("Channels '%s' and '%s' have the same incoming tag '%s'",
+						other, name, channel.getEmailTagIncoming()));
+			for (String folder : new String[] {channel.getOutboxFolder(), channel.getInboxFolder()}) {
+				other = folders.put(new File(folder).getAbsolutePath(), name);
+				if (other != null)
+					throw new IOException(String.format("Channels '%s' and '%s' have the same folder '%s'",
+							other, name, folder));
+			}
+		}
 	}
 
 	String getEwsEmail() {
@@ -202,6 +370,14 @@ public class Config {
 		return ewsSubscriptionLifetime;
 	}
 
+	String getEwsAutodiscoverFile() {
+		return ewsAutodiscoverFile;
+	}
+
+	int getEwsAutodiscoverTtl() {
+		return ewsAutodiscoverTtl;
+	}
+
 	String getProxyHost() {
 		return proxyHost;
 	}
@@ -230,8 +406,59 @@ public class Config {
 		return outboxCleanup;
 	}
 
-	String getOutboxFileRegexp() {
-		return outboxFileRegexp;
+	/**
+	 * @return compiled {@code outbox.file.regexp}, or {@code null} if all files match
+	 */
+	Pattern getOutboxFilePattern() {
+		return outboxFilePattern;
+	}
+
+	int getOutboxFileStableTime() {
+		return outboxFileStableTime;
+	}
+
+	int getOutboxBatchFiles() {
+		return outboxBatchFiles;
+	}
+
+	int getOutboxBatchSize() {
+		return outboxBatchSize;
+	}
+
+	int getOutboxBatchWait() {
+		return outboxBatchWait;
+	}
+
+	String getOutboxIndexFile() {
+		return outboxIndexFile;
+	}
+
+	int getOutboxUnitFiles() {
+		return outboxUnitFiles;
+	}
+
+	int getOutboxUnitSize() {
+		return outboxUnitSize;
+	}
+
+	Pattern getOutboxPriorityHighPattern() {
+		return outboxPriorityHighPattern;
+	}
+
+	int getOutboxPriorityHighSize() {
+		return outboxPriorityHighSize;
+	}
+
+	Pattern getOutboxPriorityLowPattern() {
+		return outboxPriorityLowPattern;
+	}
+
+	int getOutboxPriorityLowSize() {
+		return outboxPriorityLowSize;
+	}
+
+	int getOutboxPrepareThreads() {
+		return outboxPrepareThreads;
 	}
 
 	String getInboxFolder() {
@@ -246,10 +473,42 @@ public class Config {
 		return inboxScriptStopCode;
 	}
 
+	int getInboxScriptTimeout() {
+		return inboxScriptTimeout;
+	}
+
+	int getInboxScriptThreads() {
+		return inboxScriptThreads;
+	}
+
+	boolean isInboxScriptPersistent() {
+		return inboxScriptPersistent;
+	}
+
+	InboxDelivery.Sync getInboxSync() {
+		return inboxSync;
+	}
+
+	int getInboxDecodeThreads() {
+		return inboxDecodeThreads;
+	}
+
+	int getInboxOrderTimeout() {
+		return inboxOrderTimeout;
+	}
+
+	String getInboxOrderFile() {
+		return inboxOrderFile;
+	}
+
 	boolean isEmailInboxCleanup() {
 		return emailInboxCleanup;
 	}
 
+	String getEmailInboxIndexFile() {
+		return emailInboxIndexFile;
+	}
+
 	String getEmailTagIncoming() {
 		return emailTagIncoming;
 	}
@@ -259,11 +518,12 @@ public class Config {
 	}
 
 	MessageFormat getEmailSubjectFormat() {
-		return emailSubjectFormat;
+		// MessageFormat isn't thread-safe
+		return (MessageFormat) emailSubjectFormat.clone();
 	}
 
 	MessageFormat getEmailBodyFormat() {
-		return emailBodyFormat;
+		return (MessageFormat) emailBodyFormat.clone();
 	}
 
 	String[] getEmailRecipientsTo() {
@@ -298,6 +558,26 @@ public class Config {
 		return emailAttachMaxSize;
 	}
 
+	int getEmailSendRateBytes() {
+		return emailSendRateBytes;
+	}
+
+	int getEmailSendRateBytesBurst() {
+		return emailSendRateBytesBurst;
+	}
+
+	int getEmailSendRateMessages() {
+		return emailSendRateMessages;
+	}
+
+	int getEmailSendRateMessagesBurst() {
+		return emailSendRateMessagesBurst;
+	}
+
+	boolean isThreadsVirtual() {
+		return threadsVirtual;
+	}
+
 	String getPidFile() {
 		return pidFile;
 	}
@@ -306,8 +586,62 @@ public class Config {
 		return pidFileKeep;
 	}
 
+	int getStorageTempBudget() {
+		return storageTempBudget;
+	}
+
+	int getStorageInboxBudget() {
+		return storageInboxBudget;
+	}
+
+	int getStorageMinFree() {
+		return storageMinFree;
+	}
+
+	int getStorageEvictAge() {
+		return storageEvictAge;
+	}
+
+	/**
+	 * @return name of channel, or empty string if configuration has no channels
+	 */
+	String getChannelName() {
+		return channelName;
+	}
+
+	/**
+	 * @return configurations of all channels, or this configuration only if it has no channels
+	 */
+	List<Config> getChannels() {
+		return channels;
+	}
+
+	/**
+	 * Lists settings that differ in given configuration, but cannot be applied w/o restart.
+	 *
+	 * @param other newly loaded configuration
+	 * @return names of changed settings, empty if configuration may be reloaded
+	 */
+	Set<String> getStaticChanges(Config other) {
+		Set<String> result = new TreeSet<>();
+		addStaticChanges(this, other, result);
+		if (channels.size() != other.channels.size()) result.add("channels");
+		else for (int i = 0; i < channels.size(); ++i)
+			addStaticChanges(channels.get(i), other.channels.get(i), result);
+		return result;
+	}
+
+	private static void addStaticChanges(Config config, Config other, Set<String> result) {
+		Map<String, String> env = config.asEnvironmentMap();
+		Map<String, String> otherEnv = other.asEnvironmentMap();
+		for (String name : STATIC_SETTINGS)
+			if (!Objects.equals(env.get(name), otherEnv.get(name)))
+				result.add(name.equals("CHANNEL") ? "channels" : name.toLowerCase().replace('_', '.'));
+	}
+
 	Map<String, String> asEnvironmentMap() {
 		Map<String, String> result = new HashMap<>();
+		result.put("CHANNEL", channelName);
 		result.put("EWS_EMAIL", ewsEmail);
 		result.put("EWS_DOMAIN", ewsDomain);
 		result.put("EWS_USERNAME", ewsUsername);
@@ -315,6 +649,8 @@ public class Config {
 		result.put("EWS_SERVER", ewsServer);
 		result.put("EWS_VIEW_SIZE", "" + ewsViewSize);
 		result.put("EWS_SUBSCRIPTION_LIFETIME", "" + ewsSubscriptionLifetime);
+		result.put("EWS_AUTODISCOVER_FILE", ewsAutodiscoverFile);
+		result.put("EWS_AUTODISCOVER_TTL", "" + ewsAutodiscoverTtl);
 		result.put("PROXY_HOST", proxyHost);
 		result.put("PROXY_PORT", "" + proxyPort);
 		result.put("PROXY_USERNAME", proxyUsername);
@@ -323,14 +659,34 @@ public class Config {
 		result.put("OUTBOX_FOLDER", outboxFolder);
 		result.put("OUTBOX_CLEANUP", "" + outboxCleanup);
 		result.put("OUTBOX_FILE_REGEXP", outboxFileRegexp);
+		result.put("OUTBOX_FILE_STABLE_TIME", "" + outboxFileStableTime);
+		result.put("OUTBOX_BATCH_FILES", "" + outboxBatchFiles);
+		result.put("OUTBOX_BATCH_SIZE", "" + outboxBatchSize);
+		result.put("OUTBOX_BATCH_WAIT", "" + outboxBatchWait);
+		result.put("OUTBOX_INDEX_FILE", outboxIndexFile);
+		result.put("OUTBOX_UNIT_FILES", "" + outboxUnitFiles);
+		result.put("OUTBOX_UNIT_SIZE", "" + outboxUnitSize);
+		result.put("OUTBOX_PRIORITY_HIGH_REGEXP", outboxPriorityHighRegexp);
+		result.put("OUTBOX_PRIORITY_HIGH_SIZE", "" + outboxPriorityHighSize);
+		result.put("OUTBOX_PRIORITY_LOW_REGEXP", outboxPriorityLowRegexp);
+		result.put("OUTBOX_PRIORITY_LOW_SIZE", "" + outboxPriorityLowSize);
+		result.put("OUTBOX_PREPARE_THREADS", "" + outboxPrepareThreads);
 		result.put("INBOX_FOLDER", inboxFolder);
 		result.put("INBOX_SCRIPT", inboxScript);
 		result.put("INBOX_SCRIPT_STOP_CODE", "" + inboxScriptStopCode);
+		result.put("INBOX_SCRIPT_TIMEOUT", "" + inboxScriptTimeout);
+		result.put("INBOX_SCRIPT_THREADS", "" + inboxScriptThreads);
+		result.put("INBOX_SCRIPT_PERSISTENT", "" + inboxScriptPersistent);
+		result.put("INBOX_SYNC", inboxSync.name().toLowerCase());
+		result.put("INBOX_DECODE_THREADS", "" + inboxDecodeThreads);
+		result.put("INBOX_ORDER_TIMEOUT", "" + inboxOrderTimeout);
+		result.put("INBOX_ORDER_FILE", inboxOrderFile);
 		result.put("EMAIL_TAG_INCOMING", emailTagIncoming);
 		result.put("EMAIL_TAG_OUTGOING", emailTagOutgoing);
 		result.put("EMAIL_SUBJECT_FORMAT", emailSubjectFormat.toPattern());
 		result.put("EMAIL_BODY_FORMAT", emailBodyFormat.toPattern());
 		result.put("EMAIL_INBOX_CLEANUP", "" + emailInboxCleanup);
+		result.put("EMAIL_INBOX_INDEX_FILE", emailInboxIndexFile);
 		result.put("EMAIL_RECIPIENTS_TO", Utils.join(",", emailRecipientsTo));
 		result.put("EMAIL_RECIPIENTS_CC", Utils.join(",", emailRecipientsCc));
 		result.put("EMAIL_RECIPIENTS_BCC", Utils.join(",", emailRecipientsBcc));
@@ -339,8 +695,17 @@ public class Config {
 		result.put("EMAIL_ATTACH_EXT_GZIP", emailAttachExtGzip);
 		result.put("EMAIL_ATTACH_EXT_ENC", emailAttachExtEnc);
 		result.put("EMAIL_ATTACH_MAX_SIZE", "" + emailAttachMaxSize);
+		result.put("EMAIL_SEND_RATE_BYTES", "" + emailSendRateBytes);
+		result.put("EMAIL_SEND_RATE_BYTES_BURST", "" + emailSendRateBytesBurst);
+		result.put("EMAIL_SEND_RATE_MESSAGES", "" + emailSendRateMessages);
+		result.put("EMAIL_SEND_RATE_MESSAGES_BURST", "" + emailSendRateMessagesBurst);
+		result.put("THREADS_VIRTUAL", "" + threadsVirtual);
 		result.put("PID_FILE", pidFile);
 		result.put("PID_FILE_KEEP", "" + pidFileKeep);
+		result.put("STORAGE_TEMP_BUDGET", "" + storageTempBudget);
+		result.put("STORAGE_INBOX_BUDGET", "" + storageInboxBudget);
+		result.put("STORAGE_MIN_FREE", "" + storageMinFree);
+		result.put("STORAGE_EVICT_AGE", "" + storageEvictAge);
 		return result;
 	}
 
@@ -353,13 +718,16 @@ public class Config {
 	@Override
 	public String toString() {
 		return "Config {" +
-				"\n\tewsEmail='" + ewsEmail + '\'' +
+				"\n\tchannelName='" + channelName + '\'' +
+				",\n\tewsEmail='" + ewsEmail + '\'' +
 				",\n\tewsDomain='" + ewsDomain + '\'' +
 				",\n\tewsUsername='" + ewsUsername + '\'' +
 				",\n\tewsPassword='********'" +
 				",\n\tewsServer='" + ewsServer + '\'' +
 				",\n\tewsViewSize=" + ewsViewSize +
 				",\n\tewsSubscriptionLifetime=" + ewsSubscriptionLifetime +
+				",\n\tewsAutodiscoverFile='" + ewsAutodiscoverFile + '\'' +
+				",\n\tewsAutodiscoverTtl=" + ewsAutodiscoverTtl +
 				",\n\tproxyHost='" + proxyHost + '\'' +
 				",\n\tproxyPort=" + proxyPort +
 				",\n\tproxyUsername='" + proxyUsername + '\'' +
@@ -368,14 +736,34 @@ public class Config {
 				",\n\toutboxFolder='" + outboxFolder + '\'' +
 				",\n\toutboxCleanup=" + outboxCleanup +
 				",\n\toutboxFileRegexp='" + outboxFileRegexp + '\'' +
+				",\n\toutboxFileStableTime=" + outboxFileStableTime +
+				",\n\toutboxBatchFiles=" + outboxBatchFiles +
+				",\n\toutboxBatchSize=" + outboxBatchSize +
+				",\n\toutboxBatchWait=" + outboxBatchWait +
+				",\n\toutboxIndexFile='" + outboxIndexFile + '\'' +
+				",\n\toutboxUnitFiles=" + outboxUnitFiles +
+				",\n\toutboxUnitSize=" + outboxUnitSize +
+				",\n\toutboxPriorityHighRegexp='" + outboxPriorityHighRegexp + '\'' +
+				",\n\toutboxPriorityHighSize=" + outboxPriorityHighSize +
+				",\n\toutboxPriorityLowRegexp='" + outboxPriorityLowRegexp + '\'' +
+				",\n\toutboxPriorityLowSize=" + outboxPriorityLowSize +
+				",\n\toutboxPrepareThreads=" + outboxPrepareThreads +
 				",\n\tinboxFolder='" + inboxFolder + '\'' +
 				",\n\tinboxScript='" + inboxScript + '\'' +
 				",\n\tinboxScriptStopCode=" + inboxScriptStopCode +
+				",\n\tinboxScriptTimeout=" + inboxScriptTimeout +
+				",\n\tinboxScriptThreads=" + inboxScriptThreads +
+				",\n\tinboxScriptPersistent=" + inboxScriptPersistent +
+				",\n\tinboxSync=" + inboxSync +
+				",\n\tinboxDecodeThreads=" + inboxDecodeThreads +
+				",\n\tinboxOrderTimeout=" + inboxOrderTimeout +
+				",\n\tinboxOrderFile='" + inboxOrderFile + '\'' +
 				",\n\temailTagIncoming='" + emailTagIncoming + '\'' +
 				",\n\temailTagOutgoing='" + emailTagOutgoing + '\'' +
 				",\n\temailSubjectFormat='" + emailSubjectFormat.toPattern() + '\'' +
 				",\n\temailBodyFormat='" + emailBodyFormat.toPattern() + '\'' +
 				",\n\temailInboxCleanup=" + emailInboxCleanup +
+				",\n\temailInboxIndexFile='" + emailInboxIndexFile + '\'' +
 				",\n\temailRecipientsTo=" + Arrays.toString(emailRecipientsTo) +
 				",\n\temailRecipientsCc=" + Arrays.toString(emailRecipientsCc) +
 				",\n\temailRecipientsBcc=" + Arrays.toString(emailRecipientsBcc) +
@@ -384,8 +772,18 @@ public class Config {
 				",\n\temailAttachExtGzip='" + emailAttachExtGzip + '\'' +
 				",\n\temailAttachExtEnc='" + emailAttachExtEnc + '\'' +
 				",\n\temailAttachMaxSize=" + emailAttachMaxSize +
+				",\n\temailSendRateBytes=" + emailSendRateBytes +
+				",\n\temailSendRateBytesBurst=" + emailSendRateBytesBurst +
+				",\n\temailSendRateMessages=" + emailSendRateMessages +
+				",\n\temailSendRateMessagesBurst=" + emailSendRateMessagesBurst +
+				",\n\tthreadsVirtual=" + threadsVirtual +
 				",\n\tpidFile='" + pidFile + '\'' +
 				",\n\tpidFileKeep=" + pidFileKeep +
+				",\n\tstorageTempBudget=" + storageTempBudget +
+				",\n\tstorageInboxBudget=" + storageInboxBudget +
+				",\n\tstorageMinFree=" + storageMinFree +
+				",\n\tstorageEvictAge=" + storageEvictAge +
+				(channels.size() > 1 || channels.get(0) != this ? ",\n\tchannels=" + channels : "") +
 				'}';
 	}
 }
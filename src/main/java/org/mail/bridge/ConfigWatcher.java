@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.mail.bridge.util.ThreadUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches configuration file and posts newly loaded configuration as soon as the file is changed.
+ * <p/>
+ * Editors usually write file in several steps (truncate, write, rename), so that reload is postponed until the file
+ * stays unchanged for {@link #SETTLE_TIME}. Configuration that cannot be loaded is reported and skipped, so that
+ * application keeps running with the previous one.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class ConfigWatcher extends AbstractMonitor implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ConfigWatcher.class);
+
+	static final long SETTLE_TIME = 500;
+
+	static class ReloadConfigMessage extends Message<Config> {
+		ReloadConfigMessage(Config config) {
+			super(config);
+		}
+	}
+
+	private final File file;
+	private final boolean threadsVirtual;
+	private volatile Thread monitorThread;
+	private long lastModified;
+	private long length;
+
+	ConfigWatcher(String fileName, boolean threadsVirtual) {
+		file = new File(fileName).getAbsoluteFile();
+		this.threadsVirtual = threadsVirtual;
+	}
+
+	ConfigWatcher addReloadCallback(MonitorCallback<Config> callback) {
+		return (ConfigWatcher) addCallback(ReloadConfigMessage.class, callback);
+	}
+
+	/**
+	 * Remembers the current state of configuration file, so that only further changes cause reload.
+	 */
+	@Override
+	public ConfigWatcher scan() {
+		isChanged();
+		return this;
+	}
+
+	@Override
+	public ConfigWatcher monitor() {
+		LOG.info("Start watching configuration file '{}'", file);
+		if (monitorThread == null) {
+			monitorThread = ThreadUtil.newThread(this, ConfigWatcher.class.getSimpleName(), true, threadsVirtual);
+			monitorThread.start();
+		}
+		return this;
+	}
+
+	@Override
+	public ConfigWatcher stop() {
+		Thread thread = monitorThread;
+		if (thread != null) {
+			monitorThread = null;
+			thread.interrupt();
+		}
+		stopCallbacks();
+		return this;
+	}
+
+	private boolean isChanged() {
+		long modified = file.lastModified();
+		long size = file.length();
+		if (modified == lastModified && size == length) return false;
+		lastModified = modified;
+		length = size;
+		return true;
+	}
+
+	private void reload() {
+		if (!isChanged()) {
+			LOG.debug("Configuration file '{}' is touched, but not changed", file);
+			return;
+		}
+		if (!file.isFile()) {
+			LOG.warn("Configuration file '{}' is missing, current settings are kept", file);
+			return;
+		}
+		Config config;
+		try {
+			config = new Config(file.getPath());
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Cannot reload configuration file '" + file + "', current settings are kept: " + e.getMessage(), e);
+			return;
+		}
+		LOG.info("Configuration file '{}' is changed", file);
+		postMessage(new ReloadConfigMessage(config));
+	}
+
+	@SuppressWarnings("unchecked")
+	private static boolean isConfigEvent(WatchKey key, Path name) {
+		boolean result = false;
+		for (WatchEvent<?> event : key.pollEvents())
+			if (event.kind() == OVERFLOW || name.equals(((WatchEvent<Path>) event).context()))
+				result = true;
+		key.reset();
+		return result;
+	}
+
+	@Override
+	public void run() {
+		Path name = file.toPath().getFileName();
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			file.getParentFile().toPath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+			while (monitorThread != null) {
+				if (!isConfigEvent(watcher.take(), name)) continue;
+				// Wait until the file settles down
+				WatchKey key;
+				while ((key = watcher.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null)
+					isConfigEvent(key, name);
+				reload();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			LOG.debug("Configuration watching is interrupted");
+		} catch (IOException e) {
+			LOG.error("Cannot watch configuration file '" + file + "': " + e.getMessage(), e);
+		}
+		LOG.info("Stop watching configuration file '{}'", file);
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Blocking message dispatcher: waits for posted messages and passes them to handlers registered per message type.
+ * Keeps statistics of queue depth, queue latency and handling time per message type,
+ * and logs them every {@link #REPORT_INTERVAL} minutes if any message was handled since the last report.
+ * <p/>
+ * Amount of queued messages of a type may be limited by {@link EventBus.Backpressure} policy of its handler:
+ * {@code BLOCK} makes posting thread wait for a room, {@code COALESCE} drops posted message if one of the same type
+ * is queued already, since queued one isn't handled yet. The dispatching thread itself never waits, so that
+ * handler may post messages w/o deadlock.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class Dispatcher implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(Dispatcher.class);
+	static final long REPORT_INTERVAL = 10;
+
+	private static class Envelope {
+		private final Message<?> message;
+		private final long posted = System.nanoTime();
+
+		Envelope(Message<?> message) {
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Counts queued messages of one type.
+	 */
+	private static class Limit {
+		private final EventBus.Backpressure policy;
+		private final int capacity;
+		private int queued;
+		private boolean closed;
+
+		Limit(EventBus.Backpressure policy, int capacity) {
+			this.policy = policy;
+			this.capacity = Math.max(capacity, 1);
+		}
+
+		/**
+		 * @return {@code false} if message has to be dropped
+		 */
+		synchronized boolean acquire(boolean wait) throws InterruptedException {
+			if (policy == EventBus.Backpressure.COALESCE && queued > 0) return false;
+			while (wait && !closed && queued >= capacity)
+				wait();
+			if (closed) return false;
+			++queued;
+			return true;
+		}
+
+		synchronized void release() {
+			--queued;
+			notifyAll();
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+	}
+
+	static class Stats {
+		private long count;
+		private long waitTime;
+		private long handleTime;
+		private long maxHandleTime;
+
+		private synchronized void add(long wait, long handle) {
+			++count;
+			waitTime += wait;
+			handleTime += handle;
+			maxHandleTime = Math.max(maxHandleTime, handle);
+		}
+
+		synchronized long getCount() {
+			return count;
+		}
+
+		synchronized long getAvgWaitMillis() {
+			return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitTime / count);
+		}
+
+		synchronized long getAvgHandleMillis() {
+			return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(handleTime / count);
+		}
+
+		synchronized long getMaxHandleMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(maxHandleTime);
+		}
+
+		@Override
+		public String toString() {
+			return "Stats {" +
+					"count=" + getCount() +
+					", avgWait=" + getAvgWaitMillis() + "ms" +
+					", avgHandle=" + getAvgHandleMillis() + "ms" +
+					", maxHandle=" + getMaxHandleMillis() + "ms" +
+					'}';
+		}
+	}
+
+	private final String name;
+	private final BlockingQueue<Envelope> queue = new LinkedBlockingQueue<>();
+	private final Map<Class<?>, MonitorCallback<?>> handlers = new ConcurrentHashMap<>();
+	private final Map<Class<?>, Stats> stats = new ConcurrentHashMap<>();
+	private final Map<Class<?>, Limit> limits = new ConcurrentHashMap<>();
+	private volatile Thread thread;
+	private volatile boolean stopped;
+	private long reportTime;
+	private long reportedCount;
+
+	Dispatcher(String name) {
+		this.name = name;
+	}
+
+	<T> Dispatcher addHandler(Class<? extends Message<T>> messageClass, MonitorCallback<T> handler) {
+		handlers.put(messageClass, handler);
+		stats.put(messageClass, new Stats());
+		return this;
+	}
+
+	/**
+	 * Registers handler of messages which amount in queue is limited.
+	 *
+	 * @param policy what to do if there are {@code capacity} queued messages of the type,
+	 * {@link EventBus.Backpressure#DROP_OLDEST} isn't supported
+	 * @param capacity max amount of queued messages of the type, it's 1 for {@link EventBus.Backpressure#COALESCE}
+	 */
+	<T> Dispatcher addHandler(Class<? extends Message<T>> messageClass, MonitorCallback<T> handler,
+			EventBus.Backpressure policy, int capacity) {
+		if (policy != EventBus.Backpressure.BLOCK && policy != EventBus.Backpressure.COALESCE)
+			throw new IllegalArgumentException("Backpressure policy " + policy + " isn't supported");
+		limits.put(messageClass, new Limit(policy, capacity));
+		return addHandler(messageClass, handler);
+	}
+
+	void post(Message<?> message) {
+		if (stopped) {
+			LOG.warn("{} is stopped, message {} is ignored", name, message);
+			return;
+		}
+		Limit limit = limits.get(message.getClass());
+		if (limit != null)
+			try {
+				if (!limit.acquire(Thread.currentThread() != thread)) {
+					LOG.debug("{}: message {} is dropped, since the same one is queued already", name, message);
+					return;
+				}
+			} catch (InterruptedException e) {
+				LOG.warn("{}: interrupted while waiting for queue, message {} dropped", name, message);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		queue.add(new Envelope(message));
+	}
+
+	/**
+	 * Stops dispatching after message that is being handled now. The rest of queued messages are discarded.
+	 */
+	void stop() {
+		stopped = true;
+		for (Limit limit : limits.values())
+			limit.close();
+		Thread t = thread;
+		if (t != null && t != Thread.currentThread()) t.interrupt();
+	}
+
+	int getQueueDepth() {
+		return queue.size();
+	}
+
+	Map<Class<?>, Stats> getStats() {
+		return stats;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> void dispatch(Envelope envelope) {
+		Message<T> message = (Message<T>) envelope.message;
+		MonitorCallback<T> handler = (MonitorCallback<T>) handlers.get(message.getClass());
+		if (handler == null) {
+			LOG.warn("Unsupported message {}", message);
+			return;
+		}
+		long started = System.nanoTime();
+		try {
+			handler.onMessage(message);
+		} catch (Exception e) {
+			LOG.error(e.getMessage(), e);
+		}
+		long finished = System.nanoTime();
+		Stats s = stats.get(message.getClass());
+		s.add(started - envelope.posted, finished - started);
+		if (LOG.isDebugEnabled())
+			LOG.debug("{} handled in {}ms after {}ms in queue, queue depth is {}",
+					message.getClass().getSimpleName(), TimeUnit.NANOSECONDS.toMillis(finished - started),
+					TimeUnit.NANOSECONDS.toMillis(started - envelope.posted), queue.size());
+	}
+
+	private long getHandledCount() {
+		long result = 0;
+		for (Stats s : stats.values())
+			result += s.getCount();
+		return result;
+	}
+
+	private void report() {
+		reportTime = System.nanoTime();
+		long count = getHandledCount();
+		if (count == reportedCount) return;
+		reportedCount = count;
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<Class<?>, Stats> entry : stats.entrySet())
+			if (entry.getValue().getCount() > 0)
+				sb.append(", ").append(entry.getKey().getSimpleName()).append(": ").append(entry.getValue());
+		LOG.info("{}: queue depth is {}{}", name, queue.size(), sb);
+	}
+
+	@Override
+	public void run() {
+		thread = Thread.currentThread();
+		final long interval = TimeUnit.MINUTES.toNanos(REPORT_INTERVAL);
+		reportTime = System.nanoTime();
+		while (!stopped) {
+			Envelope envelope;
+			try {
+				envelope = queue.poll(Math.max(0, reportTime + interval - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				if (!stopped) LOG.error(e.getMessage(), e);
+				break;
+			}
+			if (System.nanoTime() - reportTime >= interval) report();
+			if (envelope == null) continue;
+			LOG.debug("Message received: {}", envelope.message);
+			// Message that is posted while this one is handled is queued, so that it isn't lost
+			Limit limit = limits.get(envelope.message.getClass());
+			if (limit != null) limit.release();
+			dispatch(envelope);
+		}
+		thread = null;
+		LOG.info("{} is stopped, {} message(s) discarded", name, queue.size());
+		for (Map.Entry<Class<?>, Stats> entry : stats.entrySet())
+			LOG.info("{}: {}", entry.getKey().getSimpleName(), entry.getValue());
+	}
+
+	@Override
+	public String toString() {
+		return "Dispatcher {" + "name='" + name + '\'' + ", queueDepth=" + queue.size() + ", stats=" + stats + '}';
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * Entry point for applications that run email bridge in the same JVM.
+ * <p/>
+ * Files and data submitted here go directly to the outbound pipeline, w/o waiting for outbox folder to be
+ * scanned. Outbox folders and inbox scripts of configured channels keep working as usual.
+ * <pre>
+ * try (EmailBridge bridge = EmailBridge.start("email-bridge.properties")) {
+ *     bridge.addReceiveListener(listener);
+ *     bridge.send(new File("changes.bundle")).get();
+ * }
+ * </pre>
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class EmailBridge implements Closeable {
+
+	/**
+	 * Listener of files that are received and delivered into inbox folder of channel.
+	 */
+	public interface ReceiveListener {
+		/**
+		 * Is called in thread of inbound pipeline, so it should return quickly.
+		 *
+		 * @param channel name of channel, it's empty string if no channels are configured
+		 * @param files received files in order they were sent
+		 */
+		void onReceive(String channel, List<File> files);
+	}
+
+	private final Main main;
+
+	private EmailBridge(Main main) {
+		this.main = main;
+	}
+
+	/**
+	 * Starts bridge in background threads.
+	 *
+	 * @param configFileName path to file with configuration properties
+	 * @return running bridge
+	 * @throws IOException if configuration cannot be read or is invalid
+	 */
+	public static EmailBridge start(String configFileName) throws IOException {
+		return new EmailBridge(new Main(new Config(configFileName), configFileName, false));
+	}
+
+	/**
+	 * @return names of configured channels, the only name is empty string if no channels are configured
+	 */
+	public Set<String> getChannels() {
+		return main.getChannelNames();
+	}
+
+	/**
+	 * Sends file by the first channel, see {@link #send(String, File)}.
+	 */
+	public Future<Void> send(File file) {
+		return send(getChannels().iterator().next(), file);
+	}
+
+	/**
+	 * Sends file that is received with the same name. The file must not be changed until it is sent.
+	 *
+	 * @param channel name of channel
+	 * @param file file to send
+	 * @return future that is completed when all emails of file are sent, or failed if any of them isn't
+	 */
+	public Future<Void> send(String channel, File file) {
+		return main.submit(channel, file, file.getName());
+	}
+
+	/**
+	 * Sends data as file. Data is read completely before this method returns, so the stream may be closed then.
+	 *
+	 * @param channel name of channel
+	 * @param name path of file relative to inbox folder of receiver, with {@code /} separators
+	 * @param data data of file
+	 * @return future that is completed when all emails of file are sent, or failed if any of them isn't
+	 * @throws IOException if data cannot be read
+	 */
+	public Future<Void> send(String channel, String name, InputStream data) throws IOException {
+		return main.submit(channel, name, data);
+	}
+
+	public EmailBridge addReceiveListener(ReceiveListener listener) {
+		if (listener != null) main.addReceiveListener(listener);
+		return this;
+	}
+
+	/**
+	 * Stops bridge and waits until its pipelines are stopped. Files that are not sent yet fail their futures.
+	 */
+	@Override
+	public void close() throws IOException {
+		main.stop("Email bridge is closed");
+		try {
+			main.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for email bridge to stop");
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.mail.bridge.util.ThreadUtil;
+import org.mail.bridge.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers messages to callbacks subscribed per message type.
+ * <p/>
+ * Subscriptions are kept in copy-on-write map, so posting never locks and subscribing is thread-safe.
+ * Callback is called either synchronously in posting thread or asynchronously in bounded thread pool.
+ * Every asynchronous subscription has own bounded queue, so its messages are delivered in order,
+ * and own {@link Backpressure} policy that is applied when consumer cannot keep up with producer.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class EventBus {
+
+	private static final Logger LOG = LoggerFactory.getLogger(EventBus.class);
+
+	/**
+	 * What to do with posted message if queue of asynchronous subscription is full.
+	 */
+	enum Backpressure {
+		/** Posting thread waits until there is a room in queue. No message is lost. */
+		BLOCK,
+		/** The oldest queued message is discarded. */
+		DROP_OLDEST,
+		/** All queued messages are replaced by the posted one, so only the latest is delivered. Queue size is ignored. */
+		COALESCE
+	}
+
+	private class Subscription<T> implements Runnable {
+		private final MonitorCallback<T> callback;
+		private final Backpressure policy;
+		private final int capacity;
+		private final Deque<Message<T>> pending = new ArrayDeque<>();
+		private final Lock lock = new ReentrantLock();
+		private final Condition notFull = lock.newCondition();
+		private boolean scheduled;
+
+		Subscription(MonitorCallback<T> callback, Backpressure policy, int capacity) {
+			this.callback = callback;
+			this.policy = policy;
+			this.capacity = Math.max(capacity, 1);
+		}
+
+		boolean isAsync() {
+			return policy != null;
+		}
+
+		void offer(Message<T> message) {
+			lock.lock();
+			try {
+				if (policy == Backpressure.COALESCE) {
+					if (!pending.isEmpty()) LOG.debug("{}: {} queued message(s) coalesced into {}", name, pending.size(), message);
+					pending.clear();
+				} else if (policy == Backpressure.DROP_OLDEST) {
+					if (pending.size() >= capacity) LOG.warn("{}: queue is full, message {} dropped", name, pending.pollFirst());
+				} else {
+					while (pending.size() >= capacity)
+						notFull.await();
+				}
+				pending.addLast(message);
+				if (scheduled) return;
+				scheduled = true;
+			} catch (InterruptedException e) {
+				LOG.warn("{}: interrupted while waiting for queue, message {} dropped", name, message);
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				lock.lock();
+				try {
+					LOG.debug("{} is shut down, {} message(s) discarded", name, pending.size());
+					pending.clear();
+					scheduled = false;
+					notFull.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Message<T> message;
+				lock.lock();
+				try {
+					message = pending.pollFirst();
+					if (message == null) {
+						scheduled = false;
+						return;
+					}
+					notFull.signal();
+				} finally {
+					lock.unlock();
+				}
+				deliver(callback, message);
+			}
+		}
+	}
+
+	private final String name;
+	private final ThreadPoolExecutor executor;
+	private final AtomicReference<Map<Class<?>, List<Subscription<?>>>> subscriptions =
+			new AtomicReference<Map<Class<?>, List<Subscription<?>>>>(Collections.<Class<?>, List<Subscription<?>>>emptyMap());
+
+	/**
+	 * @param name Name of bus, it is used as prefix of thread names
+	 * @param threads Max amount of threads that deliver messages to asynchronous subscriptions
+	 */
+	EventBus(String name, int threads) {
+		this.name = name;
+		executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+				ThreadUtil.newThreadFactory(name, true, false));
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Subscribes callback that is called synchronously in posting thread.
+	 */
+	<T> EventBus subscribe(Class<? extends Message<T>> messageClass, MonitorCallback<T> callback) {
+		return subscribe(messageClass, new Subscription<>(callback, null, 0));
+	}
+
+	/**
+	 * Subscribes callback that is called asynchronously in thread of bus.
+	 *
+	 * @param messageClass Type of messages to deliver
+	 * @param callback Callback to call
+	 * @param policy What to do if there are {@code capacity} undelivered messages already
+	 * @param capacity Max amount of undelivered messages
+	 */
+	<T> EventBus subscribe(Class<? extends Message<T>> messageClass, MonitorCallback<T> callback,
+			Backpressure policy, int capacity) {
+		if (policy == null) throw new IllegalArgumentException("Backpressure policy is required");
+		return subscribe(messageClass, new Subscription<>(callback, policy, capacity));
+	}
+
+	private EventBus subscribe(Class<?> messageClass, Subscription<?> subscription) {
+		while (true) {
+			Map<Class<?>, List<Subscription<?>>> current = subscriptions.get();
+			Map<Class<?>, List<Subscription<?>>> updated = new HashMap<>(current);
+			List<Subscription<?>> list = new ArrayList<>(Utils.ensureEmpty(current.get(messageClass)));
+			list.add(subscription);
+			updated.put(messageClass, Collections.unmodifiableList(list));
+			if (subscriptions.compareAndSet(current, Collections.unmodifiableMap(updated))) return this;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> void post(Message<T> message) {
+		for (Subscription<?> subscription : Utils.ensureEmpty(subscriptions.get().get(message.getClass()))) {
+			Subscription<T> s = (Subscription<T>) subscription;
+			if (s.isAsync()) s.offer(message);
+			else deliver(s.callback, message);
+		}
+	}
+
+	private <T> void deliver(MonitorCallback<T> callback, Message<T> message) {
+		try {
+			callback.onMessage(message);
+		} catch (RuntimeException e) {
+			LOG.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Lets already queued messages be delivered, but rejects new ones.
+	 */
+	void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "EventBus {" + "name='" + name + '\'' + ", active=" + executor.getActiveCount() + '}';
+	}
+}
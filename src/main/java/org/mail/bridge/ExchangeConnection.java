@@ -0,0 +1,141 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import microsoft.exchange.webservices.data.autodiscover.IAutodiscoverRedirectionUrl;
+import microsoft.exchange.webservices.data.autodiscover.exception.AutodiscoverLocalException;
+import microsoft.exchange.webservices.data.core.ExchangeService;
+import microsoft.exchange.webservices.data.core.WebProxy;
+import microsoft.exchange.webservices.data.core.enumeration.misc.ExchangeVersion;
+import microsoft.exchange.webservices.data.credential.WebCredentials;
+import microsoft.exchange.webservices.data.credential.WebProxyCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lazily established EWS session. Every pipeline (inbound, outbound) owns its own connection,
+ * so that their requests never wait for each other.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class ExchangeConnection {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ExchangeConnection.class);
+	// Connections that are opened at the same time wait for the single auto-discover
+	private static final Object DISCOVERY_LOCK = new Object();
+
+	private final Config config;
+	private final String name;
+	private final AutodiscoverCache cache;
+	private ExchangeService service;
+	// Services replaced on invalidation, other threads may still use them, so they are closed together with connection
+	private final List<ExchangeService> retired = new ArrayList<>();
+	private boolean urlCached;
+
+	ExchangeConnection(Config config, String name) {
+		this.config = config;
+		this.name = name;
+		cache = new AutodiscoverCache(new File(config.getEwsAutodiscoverFile()),
+				TimeUnit.HOURS.toMillis(config.getEwsAutodiscoverTtl()));
+	}
+
+	synchronized boolean isOpen() {
+		return service != null;
+	}
+
+	synchronized ExchangeService open() {
+		if (service != null) {
+			LOG.debug("Connection '{}' to Exchange server was already established", name);
+			return service;
+		}
+		ExchangeService result = new ExchangeService(ExchangeVersion.Exchange2010_SP2);
+		if (!config.getProxyHost().isEmpty())
+			result.setWebProxy(new WebProxy(config.getProxyHost(), config.getProxyPort(),
+					config.getProxyDomain().isEmpty() ? null : new WebProxyCredentials(
+							config.getProxyUsername(), config.getProxyPassword(), config.getProxyDomain())));
+		result.setCredentials(
+				new WebCredentials(config.getEwsUsername(), config.getEwsPassword(), config.getEwsDomain()));
+		try {
+			if (config.getEwsServer().isEmpty()) result.setUrl(discoverUrl(result));
+			else result.setUrl(new URI(config.getEwsServer()));
+		} catch (Exception ex) {
+			LOG.error(ex.getMessage(), ex);
+			throw new IllegalArgumentException(ex);
+		}
+		LOG.debug("Connection '{}' to Exchange server is established", name);
+		service = result;
+		return service;
+	}
+
+	private URI discoverUrl(ExchangeService service) throws Exception {
+		synchronized (DISCOVERY_LOCK) {
+			URI url = cache.get(config.getEwsEmail());
+			urlCached = url != null;
+			if (urlCached) return url;
+			final long started = System.currentTimeMillis();
+			service.autodiscoverUrl(config.getEwsEmail(), new IAutodiscoverRedirectionUrl() {
+				public boolean autodiscoverRedirectionUrlValidationCallback(String redirectionUrl)
+						throws AutodiscoverLocalException {
+					return AutodiscoverCache.isSecure(redirectionUrl);
+				}
+			});
+			url = service.getUrl();
+			LOG.info("EWS URL '{}' is discovered in {}ms", url, System.currentTimeMillis() - started);
+			cache.put(config.getEwsEmail(), url);
+			return url;
+		}
+	}
+
+	/**
+	 * Forgets cached EWS URL and drops service, so that URL is discovered again on next {@link #open()}.
+	 * Dropped service isn't closed until {@link #close()}, since calls of other threads may be in flight.
+	 *
+	 * @return {@code false} if URL of connection wasn't taken from cache, so there is nothing to invalidate
+	 */
+	synchronized boolean invalidate() {
+		if (!urlCached) return false;
+		LOG.info("Cached EWS URL of connection '{}' is invalidated", name);
+		cache.remove(config.getEwsEmail());
+		urlCached = false;
+		if (service != null) retired.add(service);
+		service = null;
+		return true;
+	}
+
+	synchronized void close() {
+		for (ExchangeService s : retired)
+			s.close();
+		retired.clear();
+		if (service == null) return;
+		LOG.info("Stop connection '{}' to EWS server", name);
+		service.close();
+		service = null;
+	}
+}
@@ -23,13 +23,11 @@
  */
 package org.mail.bridge;
 
-import microsoft.exchange.webservices.data.autodiscover.IAutodiscoverRedirectionUrl;
-import microsoft.exchange.webservices.data.autodiscover.exception.AutodiscoverLocalException;
 import microsoft.exchange.webservices.data.core.ExchangeService;
 import microsoft.exchange.webservices.data.core.PropertySet;
-import microsoft.exchange.webservices.data.core.WebProxy;
-import microsoft.exchange.webservices.data.core.enumeration.misc.ExchangeVersion;
 import microsoft.exchange.webservices.data.core.enumeration.notification.EventType;
+import microsoft.exchange.webservices.data.core.enumeration.property.DefaultExtendedPropertySet;
+import microsoft.exchange.webservices.data.core.enumeration.property.MapiPropertyType;
 import microsoft.exchange.webservices.data.core.enumeration.property.WellKnownFolderName;
 import microsoft.exchange.webservices.data.core.enumeration.service.DeleteMode;
 import microsoft.exchange.webservices.data.core.response.GetItemResponse;
@@ -37,34 +35,37 @@ import microsoft.exchange.webservices.data.core.response.ServiceResponseCollecti
 import microsoft.exchange.webservices.data.core.service.item.EmailMessage;
 import microsoft.exchange.webservices.data.core.service.item.Item;
 import microsoft.exchange.webservices.data.core.service.schema.ItemSchema;
-import microsoft.exchange.webservices.data.credential.WebCredentials;
-import microsoft.exchange.webservices.data.credential.WebProxyCredentials;
 import microsoft.exchange.webservices.data.notification.*;
 import microsoft.exchange.webservices.data.property.complex.*;
+import microsoft.exchange.webservices.data.property.definition.ExtendedPropertyDefinition;
 import microsoft.exchange.webservices.data.search.FindItemsResults;
 import microsoft.exchange.webservices.data.search.ItemView;
 import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
-import net.lingala.zip4j.model.ZipParameters;
-import net.lingala.zip4j.util.Zip4jConstants;
 import org.mail.bridge.util.EncryptUtil;
+import org.mail.bridge.util.ThreadUtil;
 import org.mail.bridge.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.URI;
-import java.nio.file.Files;
+import java.text.MessageFormat;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static java.lang.Thread.sleep;
 import static java.util.regex.Pattern.CASE_INSENSITIVE;
 import static java.util.regex.Pattern.compile;
 
 /**
+ * Inbound pipeline: receives emails of channels and extracts their attachments into inbox folders.
+ * <p/>
+ * Emails are decoded concurrently, and received files are passed to inbox script through {@link ReorderBuffer}
+ * of channel, so that script gets them in the same order they were sent.
+ *
  * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
  */
 public class ExchangeMonitor extends AbstractMonitor implements
@@ -75,7 +76,18 @@ public class ExchangeMonitor extends AbstractMonitor implements
 	private static final String RE_UUID = "[0-9a-f]{8}-([0-9a-f]{4}-){3}[0-9a-f]{12}";
 	private static final Pattern RE_ATTACH_VOL = compile("^(" + RE_UUID + "_\\d+)\\.(\\d{2})$", CASE_INSENSITIVE);
 	private static final Pattern RE_ZIP_VOL = compile("^(" + RE_UUID + ")_(\\d+)\\.z\\d{2}$", CASE_INSENSITIVE);
-	private static final String ZIP_EXT = ".z00";
+	static final String ZIP_EXT = ".z00";
+	private static final long STORAGE_RETRY_INTERVAL = 10000;
+	static final String SEQUENCE_HEADER = "X-Email-Bridge-Sequence";
+	static final ExtendedPropertyDefinition SEQUENCE_PROPERTY = newHeaderProperty(SEQUENCE_HEADER);
+
+	// Parts of transfers that may be abandoned: ZIP volumes and files that are being written
+	private static final FileFilter PARTIAL_FILTER = new FileFilter() {
+		@Override
+		public boolean accept(File file) {
+			return RE_ZIP_VOL.matcher(file.getName()).matches() || InboxDelivery.isTempFile(file);
+		}
+	};
 
 	static class NewMailMessage extends Message<List<ItemId>> {
 		NewMailMessage(List<ItemId> emails) {
@@ -90,76 +102,191 @@ public class ExchangeMonitor extends AbstractMonitor implements
 	}
 
 	static class NewIncomingFilesMessage extends Message<List<File>> {
-		NewIncomingFilesMessage(List<File> files) {
+		private final String channel;
+
+		NewIncomingFilesMessage(String channel, List<File> files) {
 			super(files);
+			this.channel = channel;
+		}
+
+		String getChannel() {
+			return channel;
+		}
+
+		@Override
+		public String toString() {
+			return "NewIncomingFilesMessage {" + "channel='" + channel + '\'' + ", data=" + getData() + '}';
 		}
 	}
 
-	private final Config config;
-	private ExchangeService service;
+	/**
+	 * Precompiled dispatch table of incoming mail, it's replaced as a whole on reload of configuration.
+	 */
+	private static class Routing {
+		private final Map<String, Config> channelsByTag = new HashMap<>();
+		private final List<MessageFormat> subjectFormats = new ArrayList<>();
+		private final Map<String, StorageBudget> inboxBudgets = new HashMap<>();
+
+		Routing(List<Config> channels) {
+			Set<String> patterns = new HashSet<>();
+			for (Config channel : channels) {
+				channelsByTag.put(channel.getEmailTagIncoming(), channel);
+				inboxBudgets.put(channel.getChannelName(), new StorageBudget(
+						"inbox of channel '" + channel.getChannelName() + "'", new File(channel.getInboxFolder()),
+						channel.getStorageInboxBudget() * 1024L * 1024L, channel.getStorageMinFree() * 1024L * 1024L, true));
+				MessageFormat format = channel.getEmailSubjectFormat();
+				if (patterns.add(format.toPattern())) subjectFormats.add(format);
+			}
+		}
+	}
+
+	/**
+	 * Email of matched channel that is decoded concurrently with others.
+	 * Its files are decoded into temporary files, which are delivered when email is released in order.
+	 */
+	private class IncomingEmail implements Callable<Void> {
+		private final Config channel;
+		private final EmailMessage email;
+		private final String id;
+		private final List<InboxDelivery.Pending> files = new ArrayList<>();
+		private ReorderBuffer.Sequence sequence;
+
+		IncomingEmail(Config channel, EmailMessage email) throws Exception {
+			this.channel = channel;
+			this.email = email;
+			id = email.getId().getUniqueId();
+		}
+
+		@Override
+		public Void call() throws Exception {
+			processEmail(this);
+			return null;
+		}
+
+		List<File> getTargets() {
+			final List<File> result = new ArrayList<>();
+			for (InboxDelivery.Pending file : files)
+				result.add(file.target);
+			return result;
+		}
+
+		void discard() {
+			for (InboxDelivery.Pending file : files)
+				file.discard();
+		}
+	}
 
-	ExchangeMonitor(Config config) {
+	private final Config config;
+	private final ExchangeConnection connection;
+	private final InboxDelivery delivery;
+	private final ProcessedIndex processedIndex;
+	private final WorkArea workArea;
+	private final Object subscriptionLock = new Object();
+	// Emails that are not processed due to exhausted storage budget
+	private final List<ItemId> pausedEmails = new ArrayList<>();
+	private final ScheduledExecutorService retryExecutor;
+	private final ExecutorService decoder;
+	private final Map<String, ReorderBuffer<IncomingEmail>> orderBuffers = new HashMap<>();
+	// IDs of emails that are being decoded or wait in reorder buffers, they are still on server
+	private final Set<String> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// Channels which reorder buffers are scheduled to be checked for expired gaps
+	private final Set<String> expiring = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// ZIP volumes of one file may be decoded at the same time, but have to be extracted once
+	private final Object volumeLock = new Object();
+	private final AtomicInteger failures = new AtomicInteger();
+	// Amount of emails which processing was postponed by storage budget
+	private final AtomicInteger paused = new AtomicInteger();
+	// Amount of emails removed from server, so that scan knows how far the rest of mailbox is shifted back
+	private final AtomicInteger removed = new AtomicInteger();
+	private volatile Routing routing;
+
+	/**
+	 * @param config root configuration, its EWS settings are used
+	 * @param channels channels that share one mailbox
+	 * @param workArea scratch area for temporary folders
+	 */
+	ExchangeMonitor(Config config, List<Config> channels, WorkArea workArea) {
 		this.config = config;
+		this.workArea = workArea;
+		connection = new ExchangeConnection(config, "inbound");
+		delivery = new InboxDelivery(config.getInboxSync());
+		processedIndex = new ProcessedIndex(new File(config.getEmailInboxIndexFile()));
+		retryExecutor = Executors.newSingleThreadScheduledExecutor(
+				ThreadUtil.newThreadFactory(ExchangeMonitor.class.getSimpleName() + "Retry", true, false));
+		decoder = Executors.newFixedThreadPool(config.getInboxDecodeThreads(),
+				ThreadUtil.newThreadFactory("EmailDecoder", true, config.isThreadsVirtual()));
+		for (Config channel : channels)
+			orderBuffers.put(channel.getChannelName(), new ReorderBuffer<IncomingEmail>(
+					new File(channel.getInboxOrderFile()), TimeUnit.SECONDS.toMillis(channel.getInboxOrderTimeout())));
+		routing = new Routing(channels);
 		LOG.debug("Instantiated");
 	}
 
-	private void openConnection() {
-		if (service != null) {
-			LOG.debug("Connection to Exchange server was already established");
-			return;
-		}
-		service = new ExchangeService(ExchangeVersion.Exchange2010_SP2);
-		if (!config.getProxyHost().isEmpty())
-			service.setWebProxy(new WebProxy(config.getProxyHost(), config.getProxyPort(),
-					config.getProxyDomain().isEmpty() ? null : new WebProxyCredentials(
-							config.getProxyUsername(), config.getProxyPassword(), config.getProxyDomain())));
-		service.setCredentials(
-				new WebCredentials(config.getEwsUsername(), config.getEwsPassword(), config.getEwsDomain()));
+	/**
+	 * Applies reloaded configuration of channels to emails that are processed from now on.
+	 */
+	void reload(List<Config> channels) {
+		for (Config channel : channels)
+			orderBuffers.get(channel.getChannelName()).setGapTimeout(
+					TimeUnit.SECONDS.toMillis(channel.getInboxOrderTimeout()));
+		routing = new Routing(channels);
+	}
+
+	private static ExtendedPropertyDefinition newHeaderProperty(String name) {
 		try {
-			if (config.getEwsServer().isEmpty()) {
-				service.autodiscoverUrl(config.getEwsEmail(), new IAutodiscoverRedirectionUrl() {
-					public boolean autodiscoverRedirectionUrlValidationCallback(String redirectionUrl)
-							throws AutodiscoverLocalException {
-						return redirectionUrl.toLowerCase().startsWith("https://");
-					}
-				});
-			} else service.setUrl(new URI(config.getEwsServer()));
-		} catch (Exception ex) {
-			LOG.error(ex.getMessage(), ex);
-			throw new IllegalArgumentException(ex);
+			return new ExtendedPropertyDefinition(DefaultExtendedPropertySet.InternetHeaders, name, MapiPropertyType.String);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
 		}
 	}
 
+	private static ReorderBuffer.Sequence readSequence(Item email) throws Exception {
+		for (ExtendedProperty property : email.getExtendedProperties())
+			if (SEQUENCE_HEADER.equalsIgnoreCase(property.getPropertyDefinition().getName())) {
+				ReorderBuffer.Sequence sequence = ReorderBuffer.Sequence.parse(String.valueOf(property.getValue()));
+				if (sequence == null) LOG.warn("Malformed sequence '{}', email is processed out of order", property.getValue());
+				return sequence;
+			}
+		return null;
+	}
+
 	ExchangeMonitor addStopCallback(MonitorCallback<String> callback) {
 		return (ExchangeMonitor) addCallback(Main.StopMessage.class, callback);
 	}
 
 	ExchangeMonitor addNewMailCallback(MonitorCallback<List<ItemId>> callback) {
-		return (ExchangeMonitor) addCallback(NewMailMessage.class, callback);
+		// Don't hold EWS notification thread, but don't lose any mail as well
+		return (ExchangeMonitor) addCallback(NewMailMessage.class, callback,
+				EventBus.Backpressure.BLOCK, CALLBACK_QUEUE_SIZE);
 	}
 
 	ExchangeMonitor addReopenMonitorCallback(MonitorCallback<Void> callback) {
-		return (ExchangeMonitor) addCallback(ReopenMonitorMessage.class, callback);
+		// Don't hold EWS thread; requests that callback hasn't taken yet are merged, since one reopening is enough
+		return (ExchangeMonitor) addCallback(ReopenMonitorMessage.class, callback,
+				EventBus.Backpressure.COALESCE, 1);
 	}
 
 	ExchangeMonitor addIncomingFilesReadyCallback(MonitorCallback<List<File>> callback) {
 		return (ExchangeMonitor) addCallback(NewIncomingFilesMessage.class, callback);
 	}
 
-	private List<File> processEmail(EmailMessage emailMessage) {
-		List<File> attachFiles = new LinkedList<>();
-		try {
-			String subject = emailMessage.getSubject();
-			LOG.info("Processing email message with subject '{}'", subject);
-			emailMessage = EmailMessage.bind(service, emailMessage.getId(), new PropertySet(ItemSchema.Attachments));
-			for (Attachment a : emailMessage.getAttachments())
-				if (a instanceof FileAttachment) {
-					File file = downloadAttachment((FileAttachment) a);
-					final Matcher matcher = RE_ZIP_VOL.matcher(file.getName());
-					if (matcher.matches()) {
-						LOG.debug("New volume detected: '{}'", file.getName());
-						int expectedCount = Integer.parseInt(matcher.group(3));
-						File dir = file.getParentFile();
+	private void processEmail(IncomingEmail incoming) throws Exception {
+		final Config channel = incoming.channel;
+		LOG.info("Processing email message with subject '{}'", incoming.email.getSubject());
+		EmailMessage emailMessage = EmailMessage.bind(connection.open(), incoming.email.getId(),
+				new PropertySet(ItemSchema.Attachments, SEQUENCE_PROPERTY));
+		incoming.sequence = readSequence(emailMessage);
+		for (Attachment a : emailMessage.getAttachments())
+			if (a instanceof FileAttachment) {
+				InboxDelivery.Pending file = downloadAttachment(channel, (FileAttachment) a);
+				final Matcher matcher = RE_ZIP_VOL.matcher(file.target.getName());
+				if (matcher.matches()) {
+					LOG.debug("New volume detected: '{}'", file.target.getName());
+					// Volume names are unique, so volume is delivered at once to be found by the rest of volumes
+					delivery.deliver(file.temp, file.target);
+					int expectedCount = Integer.parseInt(matcher.group(3));
+					synchronized (volumeLock) {
+						File dir = file.target.getParentFile();
 						File[] parts = Utils.ensureEmpty(dir.listFiles(new FilenameFilter() {
 							@Override
 							public boolean accept(File dir, String name) {
@@ -168,32 +295,31 @@ public class ExchangeMonitor extends AbstractMonitor implements
 						}));
 						if (parts.length == expectedCount) {
 							LOG.info("All {} volumes received, extracting files", expectedCount);
-							File unzipDir = Files.createTempDirectory("eb-unzip-").toFile();
-							LOG.debug("Created temporary folder '{}' to unZIP volumes", unzipDir.getAbsolutePath());
-
-							final ZipFile zip = new ZipFile(new File(dir, matcher.group(1) + "_" + matcher.group(3) + ZIP_EXT));
-							zip.extractAll(unzipDir.getAbsolutePath());
+							File unzipDir = workArea.createDir("unzip-");
+
+							try {
+								final ZipFile zip = new ZipFile(new File(dir, matcher.group(1) + "_" + matcher.group(3) + ZIP_EXT));
+								zip.extractAll(unzipDir.getAbsolutePath());
+								incoming.files.addAll(extractAttachmentFiles(channel, unzipDir));
+							} finally {
+								workArea.remove(unzipDir);
+							}
+							// Parts are kept until files are extracted, so that failed extraction may be repeated
 							for (File part : parts)
 								if (part.delete()) LOG.debug("Part file '{}' was successfully removed", part.getAbsolutePath());
 								else LOG.warn("Cannot remove part file '{}'", part.getAbsolutePath());
-
-							attachFiles.addAll(extractAttachmentFiles(unzipDir));
-							removeTempDir(unzipDir);
 						} else LOG.debug("Only {} volume(s) of {} received, waiting for the rest", parts.length, expectedCount);
-					} else attachFiles.add(file);
-				}
-		} catch (Exception ex) {
-			LOG.error(ex.getMessage(), ex);
-		}
-		return attachFiles;
+					}
+				} else incoming.files.add(file);
+			}
 	}
 
-	private List<File> extractAttachmentFiles(File dir) throws IOException {
-		final List<File> result = new LinkedList<>();
+	private List<InboxDelivery.Pending> extractAttachmentFiles(Config channel, File dir) throws IOException {
+		final List<InboxDelivery.Pending> result = new LinkedList<>();
 		if (dir == null || !dir.exists() || !dir.isDirectory()) return result;
 
-		String extGz = config.getEmailAttachExtGzip();
-		String extEnc = config.getEmailAttachExtEnc();
+		String extGz = channel.getEmailAttachExtGzip();
+		String extEnc = channel.getEmailAttachExtEnc();
 
 		for (File file : Utils.ensureEmpty(dir.listFiles())) {
 			LOG.debug("Extracting file '{}'", file.getAbsolutePath());
@@ -202,23 +328,27 @@ public class ExchangeMonitor extends AbstractMonitor implements
 			if (isEncrypted) fileName = fileName.substring(0, fileName.length() - extEnc.length());
 			final boolean isGzipped = fileName.endsWith(extGz);
 			if (isGzipped) fileName = fileName.substring(0, fileName.length() - extGz.length());
-			File extractFile = new File(config.getInboxFolder(), fileName);
+			File extractFile = RelativePath.resolve(new File(channel.getInboxFolder()), RelativePath.decode(fileName));
+			File tempFile = InboxDelivery.createTempFile(extractFile);
 			try (final InputStream is = new BufferedInputStream(new FileInputStream(file));
-					 final OutputStream os = new BufferedOutputStream(new FileOutputStream(extractFile))) {
-				if (isEncrypted && isGzipped) EncryptUtil.decryptGunzip(config.getEmailAttachPassword(), is, os);
-				else if (isEncrypted) EncryptUtil.decrypt(config.getEmailAttachPassword(), is, os);
+					 final OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+				if (isEncrypted && isGzipped) EncryptUtil.decryptGunzip(channel.getEmailAttachPassword(), is, os);
+				else if (isEncrypted) EncryptUtil.decrypt(channel.getEmailAttachPassword(), is, os);
 				else if (isGzipped) EncryptUtil.gunzip(is, os);
 				else EncryptUtil.copy(is, os);
+			} catch (IOException e) {
+				if (!tempFile.delete()) LOG.warn("Cannot remove temporary file '{}'", tempFile.getAbsolutePath());
+				throw e;
 			}
-			result.add(extractFile);
-			LOG.info("A file '{}' was extracted", extractFile.getName());
+			result.add(new InboxDelivery.Pending(tempFile, extractFile));
+			LOG.info("A file '{}' was extracted", extractFile.getAbsolutePath());
 		}
 		return result;
 	}
 
-	private File downloadAttachment(final FileAttachment attach) throws Exception {
-		String extGz = config.getEmailAttachExtGzip();
-		String extEnc = config.getEmailAttachExtEnc();
+	private InboxDelivery.Pending downloadAttachment(final Config channel, final FileAttachment attach) throws Exception {
+		String extGz = channel.getEmailAttachExtGzip();
+		String extEnc = channel.getEmailAttachExtEnc();
 
 		String fileName = attach.getName();
 		LOG.debug("Found file attachment with name '{}'", fileName);
@@ -237,99 +367,345 @@ public class ExchangeMonitor extends AbstractMonitor implements
 			isExtGzip = fileName.endsWith(extGz);
 			if (isExtGzip) fileName = fileName.substring(0, fileName.length() - extGz.length());
 		}
-		final boolean isEncrypted = (isZipPart || isExtEnc) && !config.getEmailAttachPassword().isEmpty();
+		final boolean isEncrypted = (isZipPart || isExtEnc) && !channel.getEmailAttachPassword().isEmpty();
 		final boolean isGzipped = isExtGzip;
-		File attachFile = new File(config.getInboxFolder(), fileName);
+		File attachFile = isZipPart
+				? new File(channel.getInboxFolder(), fileName)
+				: RelativePath.resolve(new File(channel.getInboxFolder()), RelativePath.decode(fileName));
 
+		final File tempFile = InboxDelivery.createTempFile(attachFile);
 		final PipedInputStream input = new PipedInputStream();
 		final PipedOutputStream output = new PipedOutputStream(input);
-		try (final OutputStream os = new BufferedOutputStream(new FileOutputStream(attachFile))) {
-			final Thread threadEnc = new Thread(new Runnable() {
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		try (final OutputStream os = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+			final Thread threadEnc = ThreadUtil.newThread(new Runnable() {
 				@Override
 				public void run() {
 					try {
-						if (isEncrypted && isGzipped) EncryptUtil.decryptGunzip(config.getEmailAttachPassword(), input, os);
-						else if (isEncrypted) EncryptUtil.decrypt(config.getEmailAttachPassword(), input, os);
+						if (isEncrypted && isGzipped) EncryptUtil.decryptGunzip(channel.getEmailAttachPassword(), input, os);
+						else if (isEncrypted) EncryptUtil.decrypt(channel.getEmailAttachPassword(), input, os);
 						else if (isGzipped) EncryptUtil.gunzip(input, os);
 						else EncryptUtil.copy(input, os);
 					} catch (IOException e) {
-						LOG.error(e.getMessage(), e);
+						failure.compareAndSet(null, e);
 					}
 				}
-			}, "downloadAttachment-threadEnc");
-			final Thread threadLoad = new Thread(new Runnable() {
+			}, "downloadAttachment-threadEnc", false, config.isThreadsVirtual());
+			final Thread threadLoad = ThreadUtil.newThread(new Runnable() {
 				@Override
 				public void run() {
 					try {
 						attach.load(output);
 						output.close();
 					} catch (Exception e) {
-						LOG.error(e.getMessage(), e);
+						failure.compareAndSet(null, e);
 					}
 				}
-			}, "downloadAttachment-threadLoad");
+			}, "downloadAttachment-threadLoad", false, config.isThreadsVirtual());
 			threadEnc.start();
 			threadLoad.start();
 			threadEnc.join();
+			threadLoad.join();
 		}
-		LOG.info("Attachment was written into file '{}'", attachFile.getAbsolutePath());
-		return attachFile;
+		if (failure.get() != null) {
+			if (!tempFile.delete()) LOG.warn("Cannot remove temporary file '{}'", tempFile.getAbsolutePath());
+			throw failure.get();
+		}
+		LOG.info("Attachment was written into temporary file of '{}'", attachFile.getAbsolutePath());
+		return new InboxDelivery.Pending(tempFile, attachFile);
+	}
+
+	/**
+	 * Finds channel which incoming tag is in email subject.
+	 *
+	 * @return matched channel or {@code null}
+	 */
+	private Config matchChannel(String subject) {
+		boolean parsed = false;
+		final Routing routing = this.routing;
+		for (MessageFormat format : routing.subjectFormats)
+			try {
+				Object[] params = format.parse(subject);
+				parsed = true;
+				Config channel = Utils.isEmpty(params) ? null : routing.channelsByTag.get(String.valueOf(params[0]));
+				if (channel != null) {
+					LOG.debug("Subject '{}' is matched for processing in channel '{}'", subject, channel.getChannelName());
+					return channel;
+				}
+			} catch (ParseException ignored) {
+				// try next format
+			}
+		if (parsed) LOG.debug("Subject '{}' doesn't match to email tag", subject);
+		else LOG.trace("Subject '{}' doesn't match to subject pattern", subject);
+		return null;
 	}
 
-	private boolean isSubjectMatched(String subject) {
+	/**
+	 * Checks that inbox of channel has room for email, otherwise pauses processing of email.
+	 */
+	private boolean hasRoom(Config channel, EmailMessage email) {
+		StorageBudget budget = routing.inboxBudgets.get(channel.getChannelName());
+		if (budget.isUnlimited()) return true;
+		if (budget.isNearlyFull()) budget.evict(TimeUnit.MINUTES.toMillis(channel.getStorageEvictAge()), PARTIAL_FILTER);
+		// Size of email is close to size of its files, unless they are compressed
+		long size;
 		try {
-			Object[] params = config.getEmailSubjectFormat().parse(subject);
-			if (!Utils.isEmpty(params) && config.getEmailTagIncoming().equals(params[0])) {
-				LOG.debug("Subject '{}' is matched for processing", subject);
-				return true;
-			} else LOG.debug("Subject '{}' doesn't match to email tag", subject);
-		} catch (ParseException ignored) {
-			LOG.trace("Subject '{}' doesn't match to subject pattern", subject);
+			size = email.getSize();
+		} catch (Exception e) {
+			LOG.warn("Cannot get size of email: {}", e.getMessage());
+			size = 0;
 		}
+		// Email that is bigger than the whole budget is let in when inbox is empty, otherwise it would wait forever
+		if (budget.hasRoom(size) || (budget.getUsage() == 0 && budget.hasRoom(0))) return true;
+		pause(email, budget);
 		return false;
 	}
 
+	/**
+	 * Decodes emails of matched channels concurrently and passes them to reorder buffers of their channels.
+	 *
+	 * @param items emails to process
+	 * @param kept collects IDs of matched emails that are kept on server, may be {@code null}
+	 */
+	private void processEmails(Iterable<Item> items, Set<String> kept) throws Exception {
+		final List<IncomingEmail> matched = new ArrayList<>();
+		final List<String> keptIds = new ArrayList<>();
+		for (Item item : items) {
+			Config channel = item instanceof EmailMessage ? matchChannel(item.getSubject()) : null;
+			if (channel == null) continue;
+			IncomingEmail email = new IncomingEmail(channel, (EmailMessage) item);
+			matched.add(email);
+			if (!channel.isEmailInboxCleanup()) keptIds.add(email.id);
+		}
+		if (kept != null) kept.addAll(keptIds);
+		// Emails that were processed but kept on server are skipped w/o fetching their attachments
+		final Set<String> skipped = processedIndex.getProcessed(keptIds);
+		if (!skipped.isEmpty()) LOG.debug("{} email(s) are skipped, since they were processed already", skipped.size());
+		final List<IncomingEmail> incoming = new ArrayList<>();
+		for (IncomingEmail email : matched)
+			if (!skipped.contains(email.id) && hasRoom(email.channel, email.email) && inFlight.add(email.id))
+				incoming.add(email);
+		if (incoming.isEmpty()) return;
+		final List<Future<Void>> futures = decoder.invokeAll(incoming);
+		final Map<String, List<IncomingEmail>> decoded = new LinkedHashMap<>();
+		for (int i = 0; i < incoming.size(); ++i) {
+			IncomingEmail email = incoming.get(i);
+			try {
+				futures.get(i).get();
+			} catch (ExecutionException e) {
+				// Email isn't removed, so that it's processed once again next time
+				LOG.error(e.getCause().getMessage(), e.getCause());
+				failures.incrementAndGet();
+				email.discard();
+				inFlight.remove(email.id);
+				continue;
+			}
+			List<IncomingEmail> emails = decoded.get(email.channel.getChannelName());
+			if (emails == null) decoded.put(email.channel.getChannelName(), emails = new ArrayList<>());
+			emails.add(email);
+		}
+		for (Map.Entry<String, List<IncomingEmail>> entry : decoded.entrySet())
+			releaseEmails(entry.getKey(), entry.getValue());
+	}
+
+	/**
+	 * Delivers files of emails in order of their sequences. Emails that have no sequence,
+	 * e.g. sent by older version, are delivered at once.
+	 */
+	private void releaseEmails(String channel, List<IncomingEmail> emails) {
+		final ReorderBuffer<IncomingEmail> buffer = orderBuffers.get(channel);
+		// Released emails are delivered under lock, so that emails released by expiration don't overtake them
+		synchronized (buffer) {
+			final List<IncomingEmail> released = new ArrayList<>();
+			for (IncomingEmail email : emails)
+				if (email.sequence == null) released.add(email);
+				else released.addAll(buffer.offer(email.sequence, email));
+			deliverEmails(channel, released);
+		}
+		scheduleExpiration(channel, buffer);
+	}
+
+	/**
+	 * Moves decoded files of released emails to their final names in order of release, removes the emails
+	 * if channel is configured for cleanup or adds them to index of processed emails otherwise,
+	 * and passes delivered files to inbox script.
+	 */
+	private void deliverEmails(String channel, List<IncomingEmail> emails) {
+		if (emails.isEmpty()) return;
+		final List<IncomingEmail> delivered = new ArrayList<>();
+		final List<EmailMessage> processedEmails = new LinkedList<>();
+		final List<String> processedIds = new ArrayList<>();
+		for (IncomingEmail email : emails)
+			try {
+				for (InboxDelivery.Pending file : email.files) {
+					delivery.deliver(file.temp, file.target);
+					LOG.info("A file '{}' was received", file.target.getAbsolutePath());
+				}
+				delivered.add(email);
+				if (email.channel.isEmailInboxCleanup()) processedEmails.add(email.email);
+				else processedIds.add(email.id);
+			} catch (IOException e) {
+				// Email isn't removed, so that it's processed once again next time
+				LOG.error(e.getMessage(), e);
+				failures.incrementAndGet();
+				email.discard();
+			}
+		try {
+			// Kept emails are indexed after their files are synced, the same way as the rest are removed
+			removeEmails(processedEmails);
+			processedIndex.addAll(processedIds);
+		} catch (Exception e) {
+			LOG.error(e.getMessage(), e);
+			failures.incrementAndGet();
+		}
+		for (IncomingEmail email : emails)
+			inFlight.remove(email.id);
+		for (IncomingEmail email : delivered)
+			postIncomingFiles(channel, email.getTargets());
+	}
+
+	/**
+	 * Releases emails that wait for missing ones, so that nothing is left in buffers before one-shot run exits.
+	 */
+	synchronized void releasePending() {
+		for (Map.Entry<String, ReorderBuffer<IncomingEmail>> entry : orderBuffers.entrySet()) {
+			final ReorderBuffer<IncomingEmail> buffer = entry.getValue();
+			synchronized (buffer) {
+				if (buffer.size() > 0)
+					LOG.warn("{} email(s) of channel '{}' are released w/o waiting for missing ones", buffer.size(), entry.getKey());
+				deliverEmails(entry.getKey(), buffer.flush());
+			}
+		}
+	}
+
+	/**
+	 * @return amount of emails that failed to be processed, and of scans that failed
+	 */
+	int getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return amount of emails that were postponed by storage budget, they are retried on new mail notification
+	 */
+	int getPaused() {
+		return paused.get();
+	}
+
+	private void scheduleExpiration(final String channel, final ReorderBuffer<IncomingEmail> buffer) {
+		long wait = buffer.getWaitTime();
+		if (wait < 0 || !expiring.add(channel)) return;
+		try {
+			retryExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					expiring.remove(channel);
+					// Monitor is locked the same way as by scan, so that emails aren't removed while it pages
+					synchronized (ExchangeMonitor.this) {
+						synchronized (buffer) {
+							deliverEmails(channel, buffer.expire());
+						}
+					}
+					scheduleExpiration(channel, buffer);
+				}
+			}, wait, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			expiring.remove(channel);
+			LOG.debug("Monitor is stopped, {} email(s) of channel '{}' are left unordered", buffer.size(), channel);
+		}
+	}
+
+	/**
+	 * Postpones processing of email until storage budget is released.
+	 */
+	private void pause(EmailMessage email, StorageBudget budget) {
+		final ItemId id;
+		try {
+			id = email.getId();
+		} catch (Exception e) {
+			LOG.error(e.getMessage(), e);
+			return;
+		}
+		paused.incrementAndGet();
+		synchronized (pausedEmails) {
+			pausedEmails.add(id);
+			if (pausedEmails.size() > 1) return;
+		}
+		LOG.warn("Downloading is paused for {}ms, since storage budget is exhausted; {}", STORAGE_RETRY_INTERVAL, budget);
+		try {
+			retryExecutor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					List<ItemId> ids;
+					synchronized (pausedEmails) {
+						ids = new ArrayList<>(pausedEmails);
+						pausedEmails.clear();
+					}
+					postMessage(new NewMailMessage(ids));
+				}
+			}, STORAGE_RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			LOG.debug("Monitor is stopped, paused emails are left on server");
+		}
+	}
+
+	private void postIncomingFiles(String channel, List<File> files) {
+		if (!files.isEmpty()) postMessage(new NewIncomingFilesMessage(channel, files));
+	}
+
 	private void removeEmails(List<EmailMessage> emails) throws Exception {
-		if (Utils.isEmpty(emails) || !config.isEmailInboxCleanup()) return;
+		// Received files have to be on disk before their emails are gone
+		delivery.sync();
+		if (Utils.isEmpty(emails)) return;
 		LOG.info("Removing {} processed messages", emails.size());
 		for (EmailMessage emailMessage : emails) {
 			LOG.debug("Removing email message with subject '{}'", emailMessage.getSubject());
 			emailMessage.delete(DeleteMode.HardDelete);
+			removed.incrementAndGet();
 		}
 	}
 
 	@Override
 	public synchronized ExchangeMonitor scan() {
 		LOG.info("Start scanning '{}' mail folder", WellKnownFolderName.Inbox);
-		openConnection();
+		final ExchangeService service = connection.open();
+		boolean rediscover = false;
+		processedIndex.cache();
 		try {
 			final ItemView view = new ItemView(config.getEwsViewSize());
-			final List<File> inboxFiles = new LinkedList<>();
-			for (FindItemsResults<Item> findResults = null;
-					 findResults == null || findResults.isMoreAvailable();
-					 view.setOffset(view.getOffset() + view.getPageSize())) {
+			final Set<String> kept = new HashSet<>();
+			int removedBefore = removed.get();
+			for (FindItemsResults<Item> findResults = null; findResults == null || findResults.isMoreAvailable(); ) {
 				findResults = service.findItems(WellKnownFolderName.Inbox, view);
-				final List<EmailMessage> processedEmails = new LinkedList<>();
-				for (Item item : findResults.getItems())
-					if (isSubjectMatched(item.getSubject())) {
-						inboxFiles.addAll(processEmail((EmailMessage) item));
-						processedEmails.add((EmailMessage) item);
-					}
-				removeEmails(processedEmails);
+				processEmails(findResults.getItems(), kept);
+				// Emails are removed only while monitor is locked, i.e. by this scan, and every removed email
+				// shifts the rest of mailbox back, so next page starts earlier to skip none of emails
+				int removedNow = removed.get();
+				view.setOffset(Math.max(0, view.getOffset() + view.getPageSize() - (removedNow - removedBefore)));
+				removedBefore = removedNow;
 			}
-			if (!inboxFiles.isEmpty())
-				postMessage(new NewIncomingFilesMessage(inboxFiles));
+			// Whole mailbox is scanned, so emails that are not found were removed from server
+			processedIndex.retain(kept);
 		} catch (Exception ex) {
 			LOG.error(ex.getMessage(), ex);
+			// Cached URL may be outdated, so let's discover it again
+			rediscover = connection.invalidate();
+			if (!rediscover) failures.incrementAndGet();
+		} finally {
+			processedIndex.uncache();
 		}
-		return this;
+		return rediscover ? scan() : this;
 	}
 
+	/**
+	 * Sets up streaming subscription. Doesn't lock the monitor, so that it may run concurrently with {@link #scan()}.
+	 */
 	@Override
-	public synchronized ExchangeMonitor monitor() {
-		LOG.info("Start monitoring '{}' mail folder", WellKnownFolderName.Inbox);
-		openConnection();
+	public ExchangeMonitor monitor() {
+		synchronized (subscriptionLock) {
+			LOG.info("Start monitoring '{}' mail folder", WellKnownFolderName.Inbox);
 			try {
+				final ExchangeService service = connection.open();
 				StreamingSubscription subscription = service.subscribeToStreamingNotifications(
 						Collections.singletonList(new FolderId(WellKnownFolderName.Inbox)), EventType.NewMail);
 				LOG.debug("Setup streaming connection");
@@ -342,17 +718,27 @@ public class ExchangeMonitor extends AbstractMonitor implements
 				LOG.debug("Streaming connection opened");
 			} catch (Exception e) {
 				LOG.error(e.getMessage(), e);
+				// Cached URL may be outdated, so let's discover it again
+				if (connection.invalidate()) return monitor();
 				postMessage(new Main.StopMessage(
 						"Streaming Subscription cannot be setup. Please verify settings and re-run application."));
 			}
+		}
 		return this;
 	}
 
 	@Override
 	public ExchangeMonitor stop() {
-		LOG.info("Stop connection to EWS server");
-		service.close();
-		service = null;
+		retryExecutor.shutdownNow();
+		decoder.shutdownNow();
+		// Buffered emails are left on server, so their temporary files are not needed anymore
+		for (ReorderBuffer<IncomingEmail> buffer : orderBuffers.values())
+			synchronized (buffer) {
+				for (IncomingEmail email : buffer.clear())
+					email.discard();
+			}
+		connection.close();
+		stopCallbacks();
 		return this;
 	}
 
@@ -371,210 +757,19 @@ public class ExchangeMonitor extends AbstractMonitor implements
 	@Override
 	public void subscriptionErrorDelegate(Object sender, SubscriptionErrorEventArgs args) {
 		LOG.warn("Streaming subscription is disconnected", args.getException());
-		if (service != null)
+		if (connection.isOpen())
 			postMessage(new ReopenMonitorMessage());
 	}
 
-	synchronized void sendFiles(List<File> files) {
-		if (Utils.isEmpty(files)) return;
-		LOG.info("Sending files '{}'", files);
-
-		File tempDir = null;
-		File zipDir = null;
-		long attachSize = 0;
-		long maxSize = config.getEmailAttachMaxSize() * 1024 * 1024;
-
-		// Prepare all whole attachment files that are ready for sending in temp dir
-		try {
-			tempDir = Files.createTempDirectory("eb-attach-").toFile();
-			LOG.debug("Created temporary folder '{}' for file attachments", tempDir.getAbsolutePath());
-			for (File file : files) {
-				File attachFile = prepareFileAttachment(tempDir, file);
-				attachSize += attachFile.length();
-			}
-		} catch (IOException e) {
-			LOG.error(e.getMessage(), e);
-		}
-		if (tempDir == null) return;
-
-		// If total amount of attachment files is too big then pack them into ZIP archive divided by volumes
-		if (attachSize > maxSize)
-			zipDir = packAttachmentFiles(tempDir, maxSize);
-
-		int messages = 0;
-		try {
-			openConnection();
-			if (zipDir != null) messages += sendFilesFromDirOnePerEmail(zipDir);
-			else messages += sendFilesFromDirAsOneEmail(tempDir);
-		} finally {
-			removeTempDir(tempDir);
-			removeTempDir(zipDir);
-		}
-
-		if (config.isOutboxCleanup()) {
-			LOG.debug("Outbox is configured to auto-cleanup: {} file(s) to remove.", files.size());
-			for (File file : files) {
-				if (file.delete()) LOG.debug("File '{}' was successfully removed", file.getAbsolutePath());
-				else LOG.warn("Cannot remove file '{}'", file.getAbsolutePath());
-			}
-		}
-
-		LOG.info("Sent {} message(s)", messages);
-	}
-
-	private File packAttachmentFiles(File dir, long maxSize) {
-		try {
-			File zipDir = Files.createTempDirectory("eb-zip-").toFile();
-			LOG.debug("Created temporary folder '{}' for ZIP volumes", zipDir.getAbsolutePath());
-			ZipFile zip = new ZipFile(new File(zipDir, UUID.randomUUID().toString() + ZIP_EXT));
-			ZipParameters parameters = new ZipParameters();
-			parameters.setCompressionMethod(Zip4jConstants.COMP_STORE);
-			parameters.setIncludeRootFolder(false);
-			zip.createZipFileFromFolder(dir, parameters, true, maxSize);
-			LOG.debug("ZIP volumes created: {}", zip.getSplitZipFiles());
-
-			@SuppressWarnings("unchecked") List<String> zipParts = zip.getSplitZipFiles();
-			for (String zipPartName : zipParts) {
-				File zipPartFile = new File(zipPartName);
-				File attachPartFile = new File(zipPartName + config.getEmailAttachExtEnc());
-				if (!config.getEmailAttachPassword().isEmpty()) {
-					try (final InputStream is = new BufferedInputStream(new FileInputStream(zipPartFile));
-							 final OutputStream os = new BufferedOutputStream(new FileOutputStream(attachPartFile))) {
-						EncryptUtil.encrypt(config.getEmailAttachPassword(), is, os);
-					}
-					if (zipPartFile.delete()) {
-						LOG.debug("Original part '{}' removed successfully", zipPartName);
-						if (attachPartFile.renameTo(zipPartFile))
-							LOG.debug("Encoded part '{}' successfully renamed to '{}'",
-									attachPartFile.getName(), zipPartFile.getName());
-						else
-							LOG.warn("Cannot rename encoded part '{}' to '{}'",
-									attachPartFile.getName(), zipPartFile.getName());
-					} else LOG.warn("Cannot remove original part '{}'", zipPartName);
-				}
-			}
-			return zipDir;
-		} catch (ZipException | IOException e) {
-			LOG.error(e.getMessage(), e);
-			return null;
-		}
-	}
-
-	private EmailMessage createEmailMessage() throws Exception {
-		final EmailMessage msg = new EmailMessage(service);
-		for (String email : config.getEmailRecipientsTo())
-			msg.getToRecipients().add(email);
-		for (String email : config.getEmailRecipientsCc())
-			msg.getCcRecipients().add(email);
-		for (String email : config.getEmailRecipientsBcc())
-			msg.getBccRecipients().add(email);
-		return msg;
-	}
-
-	private int sendFilesFromDirAsOneEmail(File dir) {
-		if (dir == null || !dir.exists() || !dir.isDirectory()) return 0;
-		File[] files = dir.listFiles();
-		if (Utils.isEmpty(files)) return 0;
-		try {
-			final EmailMessage msg = createEmailMessage();
-			final StringBuilder bodyBuilder = new StringBuilder();
-			final StringBuilder subjectBuilder = new StringBuilder();
-			for (File file : files) {
-				final Object[] params = {config.getEmailTagOutgoing(), new Date(), file.getName()};
-				if (subjectBuilder.length() > 0) subjectBuilder.append(" ");
-				subjectBuilder.append(config.getEmailSubjectFormat().format(params));
-				if (bodyBuilder.length() > 0) bodyBuilder.append("\n");
-				bodyBuilder.append(config.getEmailBodyFormat().format(params));
-				msg.getAttachments().addFileAttachment(file.getAbsolutePath());
-			}
-			msg.setSubject(Utils.makeTeaser(subjectBuilder.toString(), 78, "..."));
-			msg.setBody(MessageBody.getMessageBodyFromText(bodyBuilder.toString()));
-			msg.send();
-			LOG.debug("Email with subject '{}' was successfully sent", msg.getSubject());
-			return 1;
-		} catch (Exception ex) {
-			LOG.error(ex.getMessage(), ex);
-			return 0;
-		}
-	}
-
-	private int sendFilesFromDirOnePerEmail(File dir) {
-		if (dir == null || !dir.exists() || !dir.isDirectory()) return 0;
-		File[] files = dir.listFiles();
-		if (Utils.isEmpty(files)) return 0;
-		int messages = 0;
-		try {
-			for (File file : files) {
-				final EmailMessage msg = createEmailMessage();
-				String fileName = file.getName().replaceFirst("\\.z", "_" + files.length + ".");
-				final Object[] params = {config.getEmailTagOutgoing(), new Date(), fileName};
-				msg.setSubject(Utils.makeTeaser(config.getEmailSubjectFormat().format(params), 78, "..."));
-				msg.setBody(MessageBody.getMessageBodyFromText(config.getEmailBodyFormat().format(params)));
-				msg.getAttachments().addFileAttachment(fileName, file.getAbsolutePath());
-				msg.send();
-				LOG.debug("Email with subject '{}' was successfully sent", msg.getSubject());
-				++messages;
-				sleep(100);
-			}
-		} catch (Exception ex) {
-			LOG.error(ex.getMessage(), ex);
-		}
-		return messages;
-	}
-
-	private File prepareFileAttachment(File folder, File file) throws IOException {
-		String fileName = file.getName();
-		if (config.isEmailAttachGzip()) fileName += config.getEmailAttachExtGzip();
-		if (!config.getEmailAttachPassword().isEmpty()) fileName += config.getEmailAttachExtEnc();
-		LOG.debug("Preparing file attachment with name '{}'", fileName);
-		File attachFile = new File(folder, fileName);
-		try (InputStream is = new BufferedInputStream(new FileInputStream(file));
-				 OutputStream os = new BufferedOutputStream(new FileOutputStream(attachFile))) {
-			if (config.isEmailAttachGzip() && !config.getEmailAttachPassword().isEmpty())
-				EncryptUtil.gzipEncrypt(config.getEmailAttachPassword(), is, os);
-			else if (!config.getEmailAttachPassword().isEmpty())
-				EncryptUtil.encrypt(config.getEmailAttachPassword(), is, os);
-			else if (config.isEmailAttachGzip())
-				EncryptUtil.gzip(is, os);
-			else
-				EncryptUtil.copy(is, os);
-		}
-		return attachFile;
-	}
-
-	private void removeTempDir(File dir) {
-		if (dir == null || !dir.exists() || !dir.isDirectory()) return;
-		File[] files = Utils.ensureEmpty(dir.listFiles());
-		for (File file : files)
-			if (file.delete()) LOG.debug("Temporary file '{}' was successfully removed", file.getAbsolutePath());
-			else LOG.warn("Cannot remove temporary file '{}'", file.getAbsolutePath());
-		// Let's give a chance to FS to remove files before removing temp folder itself
-		try {
-			sleep(100);
-		} catch (InterruptedException e) {
-			LOG.error(e.getMessage(), e);
-		}
-		if (dir.delete()) LOG.debug("Temporary folder '{}' was successfully removed", dir.getAbsolutePath());
-		else LOG.error("Cannot remove temporary folder '{}'", dir.getAbsolutePath());
-	}
-
 	synchronized void processNewMail(List<ItemId> newMailsIds) {
 		LOG.info("Start new mail processing - {} message(s)", newMailsIds.size());
 		try {
 			ServiceResponseCollection<GetItemResponse> responses =
-					service.bindToItems(newMailsIds, new PropertySet(ItemSchema.Subject));
-			final List<File> inboxFiles = new LinkedList<>();
-			final List<EmailMessage> processedEmails = new LinkedList<>();
-			for (GetItemResponse response : responses) {
-				Item item = response.getItem();
-				if (item instanceof EmailMessage && isSubjectMatched(item.getSubject())) {
-					inboxFiles.addAll(processEmail((EmailMessage) item));
-					processedEmails.add((EmailMessage) item);
-				}
-			}
-			removeEmails(processedEmails);
-			if (!inboxFiles.isEmpty())
-				postMessage(new NewIncomingFilesMessage(inboxFiles));
+					connection.open().bindToItems(newMailsIds, new PropertySet(ItemSchema.Subject, ItemSchema.Size));
+			final List<Item> items = new ArrayList<>();
+			for (GetItemResponse response : responses)
+				items.add(response.getItem());
+			processEmails(items, null);
 		} catch (Exception e) {
 			LOG.error(e.getMessage(), e);
 		}
@@ -0,0 +1,615 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import microsoft.exchange.webservices.data.core.service.item.EmailMessage;
+import microsoft.exchange.webservices.data.property.complex.MessageBody;
+import net.lingala.zip4j.core.ZipFile;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.util.Zip4jConstants;
+import org.mail.bridge.util.EncryptUtil;
+import org.mail.bridge.util.ThreadUtil;
+import org.mail.bridge.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.mail.bridge.ExchangeMonitor.SEQUENCE_PROPERTY;
+import static org.mail.bridge.ExchangeMonitor.ZIP_EXT;
+
+/**
+ * Outbound pipeline: prepares outbox files and sends them by email.
+ * <p/>
+ * Works in own threads with own EWS session, so that sending never blocks processing of incoming mail.
+ * <p/>
+ * Files are split into work units bounded by amount and total size of files. Units are prepared one after another,
+ * and only {@link #UNITS_IN_FLIGHT} units may be prepared but not sent yet, so that even a huge backlog occupies
+ * limited disk space, and the first messages are sent as soon as the first unit is prepared.
+ * Units of high priority have own lane with own limit, so that they are never queued behind preparation of bulk ones,
+ * and their files are prepared before files of other units waiting for a preparer thread.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class ExchangeSender {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ExchangeSender.class);
+	static final int UNITS_IN_FLIGHT = 2;
+
+	/**
+	 * File submitted through API; the future is completed when all emails of the file are sent.
+	 */
+	static class Submission extends FutureTask<Void> {
+		private static final Runnable NOTHING = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+
+		private final File file;
+		private final String name;
+		// Spooled file is removed with its folder as soon as it is sent
+		private final boolean spooled;
+
+		Submission(File file, String name, boolean spooled) {
+			super(NOTHING, null);
+			this.file = file;
+			this.name = name;
+			this.spooled = spooled;
+		}
+
+		void setSent() {
+			set(null);
+		}
+
+		void setFailure(Throwable failure) {
+			setException(failure);
+		}
+
+		@Override
+		public String toString() {
+			return "Submission {" + "file=" + file + ", name='" + name + '\'' + ", done=" + isDone() + '}';
+		}
+	}
+
+	/**
+	 * Bounded group of files of the same priority that are prepared together.
+	 * Unit is completed when it is prepared and all its transfers are completed.
+	 */
+	private class WorkUnit implements Comparable<WorkUnit> {
+		private final List<File> files = new ArrayList<>();
+		private final Channel channel;
+		// Configuration of channel at the time unit was created, it's used till the unit is completed
+		private final Config config;
+		private final TransferScheduler.Priority priority;
+		private final long number = unitCounter.incrementAndGet();
+		// Preparation of unit holds one reference, every transfer holds one more
+		private final AtomicInteger references = new AtomicInteger(1);
+		private long size;
+		// Temp space reserved to prepare the unit
+		private long space;
+
+		WorkUnit(Channel channel, Config config, TransferScheduler.Priority priority) {
+			this.channel = channel;
+			this.config = config;
+			this.priority = priority;
+		}
+
+		void retain() {
+			references.incrementAndGet();
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				LOG.debug("{} is completed", this);
+				tempBudget.release(space);
+				getLane(priority).permits.release();
+			}
+		}
+
+		@Override
+		public int compareTo(WorkUnit o) {
+			int c = priority.compareTo(o.priority);
+			return c != 0 ? c : Long.compare(number, o.number);
+		}
+
+		@Override
+		public String toString() {
+			return "WorkUnit {" + "number=" + number + ", channel='" + channel.getName() + '\'' + ", priority=" + priority + ", files=" + files.size() +
+					", size=" + size + '}';
+		}
+	}
+
+	/**
+	 * Preparation of one file, which is taken by preparer thread in order of priority of its unit.
+	 */
+	private static class PrepareTask extends FutureTask<File> implements Comparable<PrepareTask> {
+		private final WorkUnit unit;
+
+		PrepareTask(WorkUnit unit, Callable<File> callable) {
+			super(callable);
+			this.unit = unit;
+		}
+
+		@Override
+		public int compareTo(PrepareTask o) {
+			return unit.compareTo(o.unit);
+		}
+	}
+
+	/**
+	 * Outbound transfer of files that were prepared for sending together.
+	 * Every step sends either one message with whole attachments or one ZIP volume.
+	 */
+	private class OutboxTransfer extends TransferScheduler.Transfer {
+		private final Set<File> tempDirs = new LinkedHashSet<>();
+		private final List<File> sources = new ArrayList<>();
+		private final Deque<List<File>> messages = new ArrayDeque<>();
+		private final Deque<File> volumes = new ArrayDeque<>();
+		private final WorkUnit unit;
+		private int volumeCount;
+		private int sent;
+		private int failed;
+
+		OutboxTransfer(String name, WorkUnit unit) {
+			super(name, unit.priority);
+			this.unit = unit;
+			unit.retain();
+		}
+
+		@Override
+		boolean hasNext() {
+			return !messages.isEmpty() || !volumes.isEmpty();
+		}
+
+		@Override
+		void next() {
+			// Wait for outbound capacity w/o holding the session
+			List<File> files = messages.isEmpty() ? Collections.singletonList(volumes.peekFirst()) : messages.peekFirst();
+			try {
+				limiter.acquire(AttachmentPlanner.messageSize(files));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			synchronized (ExchangeSender.this) {
+				Config channel = unit.config;
+				// Number is used only if email is sent, so that receiver doesn't wait for emails that never come
+				ReorderBuffer.Sequence sequence = unit.channel.getNextSequence();
+				int count = !messages.isEmpty() ? sendFilesAsOneEmail(channel, messages.pollFirst(), sequence)
+						: sendVolumeFile(channel, volumes.pollFirst(), volumeCount, sequence);
+				if (count > 0) unit.channel.commitSequence(sequence);
+				else ++failed;
+				sent += count;
+			}
+		}
+
+		@Override
+		void complete() {
+			for (File tempDir : tempDirs)
+				workArea.remove(tempDir);
+			final OutboxIndex index = unit.channel.getIndex();
+			final List<File> outboxFiles = new ArrayList<>(sources.size());
+			for (File file : sources) {
+				Submission submission = submissions.remove(file);
+				if (submission == null) outboxFiles.add(file);
+				else finish(submission, failed == 0 ? null
+						: new IOException(failed + " email(s) of " + this + " are not sent"));
+			}
+			if (failed > 0) {
+				// Files are left in outbox, they are sent again on next scan
+				LOG.warn("{} email(s) of {} are not sent, its {} outbox file(s) are marked as failed",
+						failed, this, outboxFiles.size());
+				for (File file : outboxFiles)
+					index.setState(file, OutboxIndex.State.FAILED);
+			} else if (unit.config.isOutboxCleanup()) {
+				LOG.debug("Outbox is configured to auto-cleanup: {} file(s) to remove.", outboxFiles.size());
+				for (File file : outboxFiles) {
+					if (file.delete()) {
+						LOG.debug("File '{}' was successfully removed", file.getAbsolutePath());
+						index.remove(file);
+					} else {
+						LOG.warn("Cannot remove file '{}'", file.getAbsolutePath());
+						index.setState(file, OutboxIndex.State.SENT);
+					}
+				}
+			} else for (File file : outboxFiles)
+				index.setState(file, OutboxIndex.State.SENT);
+			LOG.info("Sent {} message(s) of {}", sent, this);
+			unit.release();
+		}
+	}
+
+	/**
+	 * Queue of work units that are prepared one after another by own feeder thread.
+	 */
+	private class Lane implements Runnable {
+		private final String name;
+		private final BlockingQueue<WorkUnit> units = new PriorityBlockingQueue<>();
+		private final Semaphore permits = new Semaphore(UNITS_IN_FLIGHT);
+		private Thread feeder;
+
+		Lane(String name) {
+			this.name = name;
+		}
+
+		void start() {
+			feeder = ThreadUtil.newThread(this, name, true, config.isThreadsVirtual());
+			feeder.start();
+		}
+
+		void stop() {
+			if (feeder != null) feeder.interrupt();
+		}
+
+		/**
+		 * Takes work units by their priority and prepares them, while there are free permits.
+		 */
+		@Override
+		public void run() {
+			try {
+				//noinspection InfiniteLoopStatement
+				while (true) {
+					permits.acquire();
+					WorkUnit unit = units.take();
+					// Prepared files and ZIP volumes of the original ones may exist at the same time
+					unit.space = unit.size * 2;
+					tempBudget.acquire(unit.space);
+					LOG.debug("Preparing {}", unit);
+					try {
+						scheduleFiles(unit);
+					} finally {
+						unit.release();
+					}
+				}
+			} catch (InterruptedException e) {
+				LOG.debug("{} is stopped, {} unit(s) left", name, units.size());
+			}
+		}
+	}
+
+	private volatile Config config;
+	private final ExchangeConnection connection;
+	private final TransferScheduler scheduler;
+	private final SendRateLimiter limiter;
+	private final StorageBudget tempBudget;
+	private final WorkArea workArea;
+	private final ExecutorService preparer;
+	private final Lane bulkLane = new Lane("WorkUnitFeeder");
+	private final Lane urgentLane = new Lane("UrgentWorkUnitFeeder");
+	private final AtomicLong unitCounter = new AtomicLong();
+	private final ConcurrentMap<File, Submission> submissions = new ConcurrentHashMap<>();
+
+	/**
+	 * @param config root configuration, its EWS, thread and rate settings are shared by all channels
+	 * @param workArea scratch area for prepared attachments
+	 */
+	ExchangeSender(Config config, WorkArea workArea) {
+		this.config = config;
+		this.workArea = workArea;
+		connection = new ExchangeConnection(config, "outbound");
+		scheduler = new TransferScheduler(TransferScheduler.class.getSimpleName(), config.isThreadsVirtual());
+		limiter = new SendRateLimiter(config);
+		tempBudget = new StorageBudget("temp folder", workArea.getRoot(),
+				config.getStorageTempBudget() * 1024L * 1024L, config.getStorageMinFree() * 1024L * 1024L, false);
+		ThreadFactory factory = ThreadUtil.newThreadFactory("AttachmentPreparer", true, config.isThreadsVirtual());
+		int threads = config.getOutboxPrepareThreads();
+		if (threads <= 0 && config.isThreadsVirtual() && ThreadUtil.isVirtualSupported())
+			// Virtual threads are cheap, so there is no reason to pool them
+			preparer = Executors.newCachedThreadPool(factory);
+		else {
+			if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+			// Files of more urgent units are taken first, see PrepareTask
+			preparer = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new PriorityBlockingQueue<Runnable>(), factory);
+		}
+		bulkLane.start();
+		urgentLane.start();
+		LOG.debug("Instantiated");
+	}
+
+	/**
+	 * Applies reloaded root configuration to files that are sent from now on.
+	 */
+	void reload(Config config) {
+		this.config = config;
+	}
+
+	ExchangeSender stop() {
+		bulkLane.stop();
+		urgentLane.stop();
+		scheduler.stop();
+		preparer.shutdownNow();
+		connection.close();
+		for (Submission submission : submissions.values())
+			finish(submission, new IllegalStateException("Sender is stopped before " + submission.file + " is sent"));
+		submissions.clear();
+		return this;
+	}
+
+	/**
+	 * Sends file of channel that doesn't have to be in outbox folder.
+	 *
+	 * @param channel channel to send file by
+	 * @param file file to send
+	 * @param name path of file relative to inbox folder of receiver, with {@code /} separators
+	 * @param spooled {@code true} if file is a temporary copy, so that its folder has to be removed when it's sent
+	 * @return future that is completed when all emails of file are sent, or failed if any of them isn't
+	 */
+	Future<Void> submit(Channel channel, File file, String name, boolean spooled) {
+		Submission submission = new Submission(file.getAbsoluteFile(), name, spooled);
+		if (submissions.putIfAbsent(submission.file, submission) != null)
+			throw new IllegalStateException("File '" + submission.file + "' is being sent already");
+		sendFiles(channel, Collections.singletonList(submission.file));
+		return submission;
+	}
+
+	private void finish(Submission submission, Throwable failure) {
+		if (submission.spooled) workArea.remove(submission.file.getParentFile());
+		if (failure == null) submission.setSent();
+		else {
+			LOG.error(failure.getMessage());
+			submission.setFailure(failure);
+		}
+	}
+
+	void sendFiles(Channel channel, List<File> files) {
+		if (Utils.isEmpty(files)) return;
+		LOG.info("Sending {} file(s) of channel '{}'", files.size(), channel.getName());
+		LOG.debug("Files to send: {}", files);
+
+		final Config config = this.config;
+		final Config channelConfig = channel.getConfig();
+		final int maxFiles = config.getOutboxUnitFiles();
+		final long maxSize = config.getOutboxUnitSize() * 1024L * 1024L;
+		final Map<TransferScheduler.Priority, WorkUnit> open = new EnumMap<>(TransferScheduler.Priority.class);
+		for (File file : files) {
+			TransferScheduler.Priority priority = getPriority(channelConfig, file);
+			WorkUnit unit = open.get(priority);
+			long size = file.length();
+			if (unit != null && ((maxFiles > 0 && unit.files.size() >= maxFiles)
+					|| (maxSize > 0 && unit.size + size > maxSize))) {
+				getLane(unit.priority).units.add(unit);
+				unit = null;
+			}
+			if (unit == null) {
+				unit = new WorkUnit(channel, channelConfig, priority);
+				open.put(priority, unit);
+			}
+			unit.files.add(file);
+			unit.size += size;
+		}
+		for (WorkUnit unit : open.values())
+			getLane(unit.priority).units.add(unit);
+		LOG.debug("{} work unit(s) are waiting to be prepared", bulkLane.units.size() + urgentLane.units.size());
+	}
+
+	private Lane getLane(TransferScheduler.Priority priority) {
+		return priority == TransferScheduler.Priority.HIGH ? urgentLane : bulkLane;
+	}
+
+	private TransferScheduler.Priority getPriority(Config channel, File file) {
+		String name = file.getName();
+		if ((channel.getOutboxPriorityHighPattern() != null && channel.getOutboxPriorityHighPattern().matcher(name).matches())
+				|| (channel.getOutboxPriorityHighSize() > 0 && file.length() <= channel.getOutboxPriorityHighSize() * 1024L))
+			return TransferScheduler.Priority.HIGH;
+		if ((channel.getOutboxPriorityLowPattern() != null && channel.getOutboxPriorityLowPattern().matcher(name).matches())
+				|| (channel.getOutboxPriorityLowSize() > 0 && file.length() >= channel.getOutboxPriorityLowSize() * 1024L))
+			return TransferScheduler.Priority.LOW;
+		return TransferScheduler.Priority.NORMAL;
+	}
+
+	private void scheduleFiles(WorkUnit unit) {
+		final Config channel = unit.config;
+		final List<File> files = unit.files;
+		final AttachmentPlanner planner = new AttachmentPlanner(channel.getEmailAttachMaxSize() * 1024L * 1024L);
+
+		// Prepare attachment files in parallel; files that are too big for one message are packed into volumes
+		final List<Future<File>> futures = new ArrayList<>(files.size());
+		for (final File file : files) {
+			PrepareTask task = new PrepareTask(unit, new Callable<File>() {
+				@Override
+				public File call() throws Exception {
+					return prepareFileAttachment(channel, file, planner);
+				}
+			});
+			preparer.execute(task);
+			futures.add(task);
+		}
+
+		// Take prepared files in original order and schedule messages as soon as they are filled enough
+		final Map<File, File> sources = new HashMap<>();
+		for (int i = 0; i < files.size(); ++i) {
+			final File source = files.get(i);
+			final File prepared;
+			try {
+				prepared = futures.get(i).get();
+			} catch (ExecutionException e) {
+				LOG.error(e.getCause().getMessage(), e.getCause());
+				Submission submission = submissions.remove(source);
+				if (submission != null) finish(submission, e.getCause());
+				else unit.channel.getIndex().setState(source, OutboxIndex.State.FAILED);
+				continue;
+			} catch (InterruptedException e) {
+				LOG.error(e.getMessage(), e);
+				for (Future<File> future : futures)
+					future.cancel(true);
+				Thread.currentThread().interrupt();
+				return;
+			}
+			if (prepared.isDirectory()) {
+				OutboxTransfer transfer = new OutboxTransfer(source.getName(), unit);
+				transfer.tempDirs.add(prepared);
+				transfer.sources.add(source);
+				transfer.volumes.addAll(Arrays.asList(Utils.ensureEmpty(prepared.listFiles())));
+				transfer.volumeCount = transfer.volumes.size();
+				scheduler.submit(transfer);
+			} else {
+				sources.put(prepared, source);
+				scheduleMessages(planner.offer(prepared), sources, unit);
+			}
+		}
+		scheduleMessages(planner.flush(), sources, unit);
+	}
+
+	private void scheduleMessages(List<List<File>> messages, Map<File, File> sources, WorkUnit unit) {
+		for (List<File> message : messages) {
+			OutboxTransfer transfer = new OutboxTransfer(sources.get(message.get(0)).getName(), unit);
+			transfer.messages.add(message);
+			for (File attachFile : message) {
+				transfer.tempDirs.add(attachFile.getParentFile());
+				transfer.sources.add(sources.get(attachFile));
+			}
+			scheduler.submit(transfer);
+		}
+	}
+
+	private boolean packAttachmentFile(Config channel, File file, long volumeSize) {
+		try {
+			ZipFile zip = new ZipFile(new File(file.getParentFile(), UUID.randomUUID().toString() + ZIP_EXT));
+			ZipParameters parameters = new ZipParameters();
+			parameters.setCompressionMethod(Zip4jConstants.COMP_STORE);
+			zip.createZipFile(new ArrayList<>(Collections.singletonList(file)), parameters, true, volumeSize);
+			LOG.debug("ZIP volumes created: {}", zip.getSplitZipFiles());
+			if (file.delete()) LOG.debug("Temporary file '{}' was successfully removed", file.getAbsolutePath());
+			else LOG.warn("Cannot remove temporary file '{}'", file.getAbsolutePath());
+
+			@SuppressWarnings("unchecked") List<String> zipParts = zip.getSplitZipFiles();
+			for (String zipPartName : zipParts) {
+				File zipPartFile = new File(zipPartName);
+				File attachPartFile = new File(zipPartName + channel.getEmailAttachExtEnc());
+				if (!channel.getEmailAttachPassword().isEmpty()) {
+					try (final InputStream is = new BufferedInputStream(new FileInputStream(zipPartFile));
+							 final OutputStream os = new BufferedOutputStream(new FileOutputStream(attachPartFile))) {
+						EncryptUtil.encrypt(channel.getEmailAttachPassword(), is, os);
+					}
+					if (zipPartFile.delete()) {
+						LOG.debug("Original part '{}' removed successfully", zipPartName);
+						if (attachPartFile.renameTo(zipPartFile))
+							LOG.debug("Encoded part '{}' successfully renamed to '{}'",
+									attachPartFile.getName(), zipPartFile.getName());
+						else
+							LOG.warn("Cannot rename encoded part '{}' to '{}'",
+									attachPartFile.getName(), zipPartFile.getName());
+					} else LOG.warn("Cannot remove original part '{}'", zipPartName);
+				}
+			}
+			return true;
+		} catch (ZipException | IOException e) {
+			LOG.error(e.getMessage(), e);
+			return false;
+		}
+	}
+
+	private EmailMessage createEmailMessage(Config channel, ReorderBuffer.Sequence sequence) throws Exception {
+		final EmailMessage msg = new EmailMessage(connection.open());
+		msg.setExtendedProperty(SEQUENCE_PROPERTY, sequence.toString());
+		for (String email : channel.getEmailRecipientsTo())
+			msg.getToRecipients().add(email);
+		for (String email : channel.getEmailRecipientsCc())
+			msg.getCcRecipients().add(email);
+		for (String email : channel.getEmailRecipientsBcc())
+			msg.getBccRecipients().add(email);
+		return msg;
+	}
+
+	private int sendFilesAsOneEmail(Config channel, List<File> files, ReorderBuffer.Sequence sequence) {
+		if (Utils.isEmpty(files)) return 0;
+		try {
+			final EmailMessage msg = createEmailMessage(channel, sequence);
+			final StringBuilder bodyBuilder = new StringBuilder();
+			final StringBuilder subjectBuilder = new StringBuilder();
+			for (File file : files) {
+				final Object[] params = {channel.getEmailTagOutgoing(), new Date(), file.getName()};
+				if (subjectBuilder.length() > 0) subjectBuilder.append(" ");
+				subjectBuilder.append(channel.getEmailSubjectFormat().format(params));
+				if (bodyBuilder.length() > 0) bodyBuilder.append("\n");
+				bodyBuilder.append(channel.getEmailBodyFormat().format(params));
+				msg.getAttachments().addFileAttachment(file.getAbsolutePath());
+			}
+			msg.setSubject(Utils.makeTeaser(subjectBuilder.toString(), 78, "..."));
+			msg.setBody(MessageBody.getMessageBodyFromText(bodyBuilder.toString()));
+			msg.send();
+			LOG.debug("Email with subject '{}' was successfully sent; {}", msg.getSubject(), limiter);
+			return 1;
+		} catch (Exception ex) {
+			LOG.error(ex.getMessage(), ex);
+			return 0;
+		}
+	}
+
+	private int sendVolumeFile(Config channel, File file, int volumeCount, ReorderBuffer.Sequence sequence) {
+		try {
+			final EmailMessage msg = createEmailMessage(channel, sequence);
+			String fileName = file.getName().replaceFirst("\\.z", "_" + volumeCount + ".");
+			final Object[] params = {channel.getEmailTagOutgoing(), new Date(), fileName};
+			msg.setSubject(Utils.makeTeaser(channel.getEmailSubjectFormat().format(params), 78, "..."));
+			msg.setBody(MessageBody.getMessageBodyFromText(channel.getEmailBodyFormat().format(params)));
+			msg.getAttachments().addFileAttachment(fileName, file.getAbsolutePath());
+			msg.send();
+			LOG.debug("Email with subject '{}' was successfully sent; {}", msg.getSubject(), limiter);
+			return 1;
+		} catch (Exception ex) {
+			LOG.error(ex.getMessage(), ex);
+			return 0;
+		}
+	}
+
+	private File prepareFileAttachment(Config channel, File file, AttachmentPlanner planner) throws IOException {
+		File folder = workArea.createDir("attach-");
+		// Path relative to outbox is kept in attachment name, so that receiver recreates the same tree
+		Submission submission = submissions.get(file);
+		String fileName = RelativePath.encode(submission != null ? submission.name
+				: RelativePath.of(new File(channel.getOutboxFolder()), file));
+		if (channel.isEmailAttachGzip()) fileName += channel.getEmailAttachExtGzip();
+		if (!channel.getEmailAttachPassword().isEmpty()) fileName += channel.getEmailAttachExtEnc();
+		LOG.debug("Preparing file attachment with name '{}'", fileName);
+		File attachFile = new File(folder, fileName);
+		try (InputStream is = new BufferedInputStream(new FileInputStream(file));
+				 OutputStream os = new BufferedOutputStream(new FileOutputStream(attachFile))) {
+			if (channel.isEmailAttachGzip() && !channel.getEmailAttachPassword().isEmpty())
+				EncryptUtil.gzipEncrypt(channel.getEmailAttachPassword(), is, os);
+			else if (!channel.getEmailAttachPassword().isEmpty())
+				EncryptUtil.encrypt(channel.getEmailAttachPassword(), is, os);
+			else if (channel.isEmailAttachGzip())
+				EncryptUtil.gzip(is, os);
+			else
+				EncryptUtil.copy(is, os);
+		} catch (IOException e) {
+			workArea.remove(folder);
+			throw e;
+		}
+		if (planner.fits(attachFile.length())) return attachFile;
+		if (!packAttachmentFile(channel, attachFile, planner.getVolumeSize())) {
+			workArea.remove(folder);
+			throw new IOException("Cannot pack file '" + file.getAbsolutePath() + "' into volumes");
+		}
+		return folder;
+	}
+}
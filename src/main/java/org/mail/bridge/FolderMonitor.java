@@ -25,16 +25,26 @@ package org.mail.bridge;
 
 import org.apache.commons.exec.*;
 import org.apache.commons.exec.environment.EnvironmentUtils;
+import org.mail.bridge.util.ThreadUtil;
 import org.mail.bridge.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
@@ -45,47 +55,82 @@ import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
 public class FolderMonitor extends AbstractMonitor implements Runnable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(FolderMonitor.class);
-	private static final long NEW_FILES_PROCESS_DELAY = 1000;
-	private static final int SCRIPT_TIMEOUT = 60000;
+	private static final long FILE_CHECK_INTERVAL = 100;
+	private static final long INDEX_SAVE_INTERVAL = 1000;
 
 	static class SendFileMessage extends Message<List<File>> {
-		SendFileMessage(List<File> data) {
+		private final String channel;
+
+		SendFileMessage(String channel, List<File> data) {
 			super(data);
+			this.channel = channel;
+		}
+
+		String getChannel() {
+			return channel;
 		}
-	}
 
-	private class ProcessFilesTimerTask extends TimerTask {
-		@SuppressWarnings("unchecked")
 		@Override
-		public void run() {
-			timer.cancel();
-			timer = null;
-			try {
-				processFiles((List<File>) files.clone());
-			} catch (IOException e) {
-				LOG.error(e.getMessage(), e);
-			}
-			files.clear();
+		public String toString() {
+			return "SendFileMessage {" + "channel='" + channel + '\'' + ", data=" + getData() + '}';
+		}
+	}
+
+	/**
+	 * Last observed state of a file that is waiting until it is completely written.
+	 */
+	private static class PendingFile {
+		private final File file;
+		private long size = -1;
+		private long modified;
+		private long changed;
+
+		PendingFile(File file) {
+			this.file = file;
 		}
 	}
 
-	private final Config config;
+	private static final Comparator<PendingFile> PENDING_MODIFIED_COMPARATOR = new Comparator<PendingFile>() {
+		@Override
+		public int compare(PendingFile o1, PendingFile o2) {
+			return Long.compare(o1.modified, o2.modified);
+		}
+	};
+
+	// Replaced on reload, so that methods that read several settings take a snapshot of it
+	private volatile Config config;
+	private final Executor scriptExecutor;
+	private final Set<File> scriptFiles = new LinkedHashSet<>();
+	private boolean scriptRunning;
+	private volatile InboxHandler inboxHandler;
+	private final AtomicInteger scriptFailures = new AtomicInteger();
 	private final File outboxFolder;
-	private final ArrayList<File> files = new ArrayList<>();
+	private final ConcurrentMap<File, PendingFile> pending = new ConcurrentHashMap<>();
+	private final AtomicBoolean checkScheduled = new AtomicBoolean();
+	private final OutboxBatcher batcher;
+	private final OutboxIndex index;
+	private final ScheduledExecutorService debouncer;
 	private Thread monitorThread;
-	private Timer timer;
 
 	private final FileFilter fileFilter = new FileFilter() {
 		@Override
 		public boolean accept(File file) {
+			Pattern pattern = config.getOutboxFilePattern();
 			return file.isFile()
 					&& file.canRead()
-					&& (config.getOutboxFileRegexp().isEmpty() || file.getName().matches(config.getOutboxFileRegexp()));
+					&& (pattern == null || pattern.matcher(file.getName()).matches());
 		}
 	};
 
-	FolderMonitor(Config config) throws IOException {
-		this.config = config;
+	/**
+	 * @param channel channel which outbox is monitored and which inbox script is run
+	 * @param scriptExecutor executor that runs inbox script, may be shared by several channels
+	 */
+	FolderMonitor(Channel channel, Executor scriptExecutor) throws IOException {
+		config = channel.getConfig();
+		index = channel.getIndex();
+		this.scriptExecutor = scriptExecutor;
+		inboxHandler = newInboxHandler(config);
 		outboxFolder = new File(config.getOutboxFolder());
 		if (outboxFolder.exists()) {
 			if (!outboxFolder.isDirectory())
@@ -94,74 +139,363 @@ public class FolderMonitor extends AbstractMonitor implements Runnable {
 				throw new IOException("Specified folder '" + outboxFolder.getAbsolutePath() + "' has insufficient permissions");
 		} else if (!outboxFolder.mkdirs())
 			throw new IOException("Cannot prepare folder '" + outboxFolder.getAbsolutePath() + "' for work");
+		batcher = new OutboxBatcher(config.getOutboxBatchFiles(), config.getOutboxBatchSize() * 1024L,
+				config.getOutboxBatchWait());
+		debouncer = Executors.newSingleThreadScheduledExecutor(
+				ThreadUtil.newThreadFactory(FolderMonitor.class.getSimpleName() + "Debouncer", true, false));
+		debouncer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				FolderMonitor.this.index.save();
+			}
+		}, INDEX_SAVE_INTERVAL, INDEX_SAVE_INTERVAL, TimeUnit.MILLISECONDS);
 		LOG.debug("Instantiated");
 	}
 
+	private static InboxHandler newInboxHandler(Config config) {
+		return config.isInboxScriptPersistent() && !config.getInboxScript().isEmpty()
+				? new InboxHandler(config.getInboxScript(),
+						Arrays.asList(CommandLine.parse(config.getInboxScript()).toStrings()),
+						config.asEnvironmentMap(), config.getInboxScriptTimeout() * 1000L, config.isThreadsVirtual())
+				: null;
+	}
+
+	/**
+	 * Applies reloaded configuration of channel to files that are checked from now on and to next script runs.
+	 * Persistent handler is restarted if its settings are changed, after it handles the current batch.
+	 */
+	void reload(final Config config) {
+		final Config old = this.config;
+		this.config = config;
+		try {
+			debouncer.execute(new Runnable() {
+				@Override
+				public void run() {
+					batcher.setLimits(config.getOutboxBatchFiles(), config.getOutboxBatchSize() * 1024L,
+							config.getOutboxBatchWait());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOG.debug("Monitor is stopped, batch limits are not changed");
+		}
+		if (config.isInboxScriptPersistent() && !config.asEnvironmentMap().equals(old.asEnvironmentMap())) {
+			final InboxHandler handler = inboxHandler;
+			inboxHandler = newInboxHandler(config);
+			if (handler != null)
+				ThreadUtil.newThread(new Runnable() {
+					@Override
+					public void run() {
+						handler.stop();
+					}
+				}, "InboxHandler-stop", true, config.isThreadsVirtual()).start();
+		}
+	}
+
 	FolderMonitor addStopCallback(MonitorCallback<String> callback) {
 		return (FolderMonitor) addCallback(Main.StopMessage.class, callback);
 	}
 
 	FolderMonitor addSendFileCallback(MonitorCallback<List<File>> callback) {
-		return (FolderMonitor) addCallback(SendFileMessage.class, callback);
+		return (FolderMonitor) addCallback(SendFileMessage.class, callback,
+				EventBus.Backpressure.BLOCK, CALLBACK_QUEUE_SIZE);
 	}
 
 	private void processFiles(List<File> files) throws IOException {
 		LOG.debug("Process files {}", files);
 		if (Utils.isEmpty(files)) return;
-		postMessage(new SendFileMessage(files));
+		postMessage(new SendFileMessage(config.getChannelName(), files));
 	}
 
-	synchronized void runScriptAgainstReceivedFiles(List<File> inboxFiles) {
+	/**
+	 * Schedules inbox script to run against received files in background.
+	 * Files that are received while script is running are passed to its next run.
+	 */
+	void runScriptAgainstReceivedFiles(List<File> inboxFiles) {
 		if (config.getInboxScript().isEmpty() || Utils.isEmpty(inboxFiles)) return;
-		LOG.debug("Run script '{}' against files {}", config.getInboxScript(), inboxFiles);
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		synchronized (scriptFiles) {
+			scriptFiles.addAll(inboxFiles);
+			if (scriptRunning) {
+				LOG.debug("Script '{}' is running, {} file(s) wait for its next run",
+						config.getInboxScript(), scriptFiles.size());
+				return;
+			}
+			scriptRunning = true;
+		}
 		try {
-			CommandLine cmd = CommandLine.parse(config.getInboxScript());
+			scriptExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					runScripts();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			LOG.warn("Script '{}' isn't run, since application is stopping", config.getInboxScript());
+			scriptFailures.incrementAndGet();
+			synchronized (scriptFiles) {
+				scriptRunning = false;
+			}
+		}
+	}
+
+	private void runScripts() {
+		while (true) {
+			List<File> files;
+			synchronized (scriptFiles) {
+				if (scriptFiles.isEmpty() || Thread.currentThread().isInterrupted()) {
+					scriptRunning = false;
+					return;
+				}
+				files = new ArrayList<>(scriptFiles);
+				scriptFiles.clear();
+			}
+			InboxHandler handler = inboxHandler;
+			if (handler != null) runHandler(handler, files);
+			else runScript(files);
+		}
+	}
+
+	private void runHandler(InboxHandler handler, List<File> inboxFiles) {
+		final Config config = this.config;
+		LOG.debug("Pass files {} to handler '{}'", inboxFiles, config.getInboxScript());
+		List<String> files = new ArrayList<>(inboxFiles.size());
+		File inboxFolder = new File(config.getInboxFolder());
+		for (File file : inboxFiles)
+			files.add(RelativePath.of(inboxFolder, file));
+		try {
+			int code = handler.handle(files);
+			if (code == 0) LOG.info("Handler '{}' successfully handled {} file(s)", config.getInboxScript(), files.size());
+			else {
+				LOG.error("Handler '{}' failed to handle {} file(s) with code {}", config.getInboxScript(), files.size(), code);
+				scriptFailures.incrementAndGet();
+				int c = config.getInboxScriptStopCode();
+				if (c != 0 && c == code)
+					postMessage(new Main.StopMessage(String.format(
+							"Handler '%s' replied with code %d that is configured as stop code", config.getInboxScript(), c)));
+			}
+		} catch (IOException e) {
+			LOG.error(e.getMessage(), e);
+			scriptFailures.incrementAndGet();
+		} catch (InterruptedException e) {
+			LOG.warn("Handler '{}' was interrupted while handling files {}", config.getInboxScript(), inboxFiles);
+			scriptFailures.incrementAndGet();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runScript(List<File> inboxFiles) {
+		final Config config = this.config;
+		final String script = config.getInboxScript();
+		LOG.debug("Run script '{}' against files {}", script, inboxFiles);
+		try (OutputStream out = new LogOutputStream() {
+					@Override
+					protected void processLine(String line, int logLevel) {
+						LOG.info("[{}] {}", script, line);
+					}
+				};
+				OutputStream err = new LogOutputStream() {
+					@Override
+					protected void processLine(String line, int logLevel) {
+						LOG.warn("[{}] {}", script, line);
+					}
+				}) {
+			CommandLine cmd = CommandLine.parse(script);
+			File inboxFolder = new File(config.getInboxFolder());
 			for (File file : inboxFiles)
-				cmd.addArgument(file.getName(), true);
+				cmd.addArgument(RelativePath.of(inboxFolder, file), true);
 			DefaultExecutor executor = new DefaultExecutor();
-			executor.setStreamHandler(new PumpStreamHandler(out));
-			executor.setWatchdog(new ExecuteWatchdog(SCRIPT_TIMEOUT));
+			executor.setStreamHandler(new PumpStreamHandler(out, err) {
+				@Override
+				protected Thread createPump(InputStream is, OutputStream os, boolean closeWhenExhausted) {
+					Thread pump = ThreadUtil.newThread(new StreamPumper(is, os, closeWhenExhausted),
+							"Exec Stream Pumper", true, config.isThreadsVirtual());
+					pump.start();
+					return pump;
+				}
+			});
+			int timeout = config.getInboxScriptTimeout();
+			executor.setWatchdog(new ExecuteWatchdog(timeout > 0 ? timeout * 1000L : ExecuteWatchdog.INFINITE_TIMEOUT));
 			Map<String, String> environment = EnvironmentUtils.getProcEnvironment();
 			environment.putAll(config.asEnvironmentMap());
 			executor.setWorkingDirectory(new File(System.getProperty("user.dir")));
 			executor.execute(cmd, environment);
-			LOG.info("Script '{}' successfully finished", config.getInboxScript());
-			LOG.debug("Script output:\n{}", out.toString());
+			LOG.info("Script '{}' successfully finished against {} file(s)", script, inboxFiles.size());
 		} catch (ExecuteException e) {
 			LOG.error(e.getMessage(), e);
-			LOG.error("\nScript '{}' output:\n{}", config.getInboxScript(), out.toString());
+			scriptFailures.incrementAndGet();
 			int c = config.getInboxScriptStopCode();
 			if (c != 0 && c == e.getExitValue())
 				postMessage(new Main.StopMessage(
-						String.format("Script '%s' exited with code %d that is configured as stop code",
-								config.getInboxScript(), c)));
+						String.format("Script '%s' exited with code %d that is configured as stop code", script, c)));
 		} catch (IOException e) {
 			LOG.error(e.getMessage(), e);
-			LOG.error("\nScript '{}' output:\n{}", config.getInboxScript(), out.toString());
+			scriptFailures.incrementAndGet();
 		}
 	}
 
+	/**
+	 * @return amount of runs of inbox script or handler that failed or were not started
+	 */
+	int getScriptFailures() {
+		return scriptFailures.get();
+	}
+
 	@Override
 	public synchronized FolderMonitor scan() {
 		LOG.info("Start scanning '{}' folder", outboxFolder.getAbsolutePath());
-		File[] files = Utils.ensureEmpty(outboxFolder.listFiles(fileFilter));
-		Arrays.sort(files, Utils.LAST_MODIFIED_COMPARATOR);
-		LOG.debug("Discovered {} file(s)", files.length);
-		if (!Utils.isEmpty(files))
+		Map<File, BasicFileAttributes> files = listFiles(outboxFolder.toPath());
+		LOG.debug("Discovered {} file(s), {} of them are indexed", files.size(), index.size());
+		index.retain(files.keySet());
+		// Some of files may be still being written, so they are sent as soon as they become stable
+		for (Map.Entry<File, BasicFileAttributes> entry : files.entrySet())
+			if (getState(entry.getKey(), entry.getValue()) != OutboxIndex.State.SENT)
+				addPendingFile(entry.getKey());
+		return this;
+	}
+
+	/**
+	 * Adds files that were missed by watch service, i.e. ones that are neither pending nor indexed.
+	 */
+	private void rescan(Path dir) {
+		LOG.info("Some events of folder '{}' were lost, rescanning it", dir);
+		for (Map.Entry<File, BasicFileAttributes> entry : listFiles(dir).entrySet())
+			if (getState(entry.getKey(), entry.getValue()) == null)
+				addPendingFile(entry.getKey());
+	}
+
+	private OutboxIndex.State getState(File file, BasicFileAttributes attrs) {
+		return index.getState(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+	}
+
+	/**
+	 * Lists files in given folder and all its sub-folders.
+	 */
+	private Map<File, BasicFileAttributes> listFiles(Path dir) {
+		final Map<File, BasicFileAttributes> result = new LinkedHashMap<>();
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (fileFilter.accept(file.toFile())) result.put(file.toFile(), attrs);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					LOG.warn("Cannot read '{}': {}", file, e.getMessage());
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			LOG.error(e.getMessage(), e);
+		}
+		return result;
+	}
+
+	/**
+	 * Registers given folder and all its sub-folders in watch service.
+	 */
+	private void register(final WatchService watcher, Path dir) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				dir.register(watcher, ENTRY_CREATE);
+				LOG.debug("Folder '{}' is watched", dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void addPendingFile(File file) {
+		if (pending.putIfAbsent(file, new PendingFile(file)) == null)
+			LOG.debug("File '{}' is waiting to be completely written", file.getAbsolutePath());
+		scheduleCheck(false);
+	}
+
+	private void scheduleCheck(boolean force) {
+		if ((force || !pending.isEmpty()) && checkScheduled.compareAndSet(false, true))
 			try {
-				processFiles(Arrays.asList(files));
-			} catch (IOException e) {
-				LOG.error(e.getMessage(), e);
+				debouncer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						checkPendingFiles();
+					}
+				}, FILE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				LOG.debug("Folder monitor is stopped, {} pending file(s) are left", pending.size());
 			}
-		return this;
+	}
+
+	/**
+	 * Sends pending files which size and modification time didn't change during configured stable time,
+	 * and which are not locked by writer. Files are grouped into batches by configured batch policy.
+	 * Runs in debouncer thread only.
+	 */
+	private void checkPendingFiles() {
+		checkScheduled.set(false);
+		long now = System.currentTimeMillis();
+		List<PendingFile> ready = new ArrayList<>();
+		for (PendingFile state : pending.values()) {
+			File file = state.file;
+			if (!file.isFile()) {
+				LOG.debug("Pending file '{}' disappeared", file.getAbsolutePath());
+				pending.remove(file);
+				continue;
+			}
+			long size = file.length();
+			long modified = file.lastModified();
+			if (size != state.size || modified != state.modified) {
+				state.changed = state.size < 0 ? Math.min(now, modified) : now;
+				state.size = size;
+				state.modified = modified;
+			} else if (now - state.changed >= config.getOutboxFileStableTime() && !isLocked(file)) {
+				pending.remove(file);
+				ready.add(state);
+			}
+		}
+		Collections.sort(ready, PENDING_MODIFIED_COMPARATOR);
+		for (PendingFile state : ready) {
+			index.put(state.file, state.size, state.modified, OutboxIndex.State.QUEUED);
+			sendBatch(batcher.add(state.file, now));
+		}
+		sendBatch(batcher.poll(now));
+		// Keep checking while batch is not empty, so that it is flushed by timeout
+		scheduleCheck(!batcher.isEmpty());
+	}
+
+	private void sendBatch(List<File> batch) {
+		if (Utils.isEmpty(batch)) return;
+		LOG.debug("Batch of {} file(s) is ready to be sent", batch.size());
+		try {
+			processFiles(batch);
+		} catch (IOException e) {
+			LOG.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Probes whether file is still locked by some writer.
+	 * Exclusive lock is taken if file is writable, otherwise shared one.
+	 */
+	private static boolean isLocked(File file) {
+		boolean writable = file.canWrite();
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				writable ? StandardOpenOption.WRITE : StandardOpenOption.READ)) {
+			FileLock lock = writable ? channel.tryLock() : channel.tryLock(0, Long.MAX_VALUE, true);
+			if (lock == null) return true;
+			lock.release();
+			return false;
+		} catch (OverlappingFileLockException | IOException e) {
+			LOG.debug("File '{}' is locked: {}", file.getAbsolutePath(), e.getMessage());
+			return true;
+		}
 	}
 
 	@Override
 	public FolderMonitor monitor() {
 		LOG.info("Start monitoring '{}' folder", outboxFolder.getAbsolutePath());
 		if (monitorThread == null) {
-			monitorThread = new Thread(this, FolderMonitor.class.getSimpleName());
+			monitorThread = new Thread(this, config.getChannelName().isEmpty() ? FolderMonitor.class.getSimpleName()
+					: FolderMonitor.class.getSimpleName() + "-" + config.getChannelName());
 			monitorThread.start();
 		}
 		return this;
@@ -174,6 +508,11 @@ public class FolderMonitor extends AbstractMonitor implements Runnable {
 			monitorThread.interrupt();
 			monitorThread = null;
 		}
+		debouncer.shutdownNow();
+		index.save();
+		InboxHandler handler = inboxHandler;
+		if (handler != null) handler.stop();
+		stopCallbacks();
 		return this;
 	}
 
@@ -184,7 +523,7 @@ public class FolderMonitor extends AbstractMonitor implements Runnable {
 		WatchService watcher;
 		try {
 			watcher = FileSystems.getDefault().newWatchService();
-			outboxPath.register(watcher, ENTRY_CREATE);
+			register(watcher, outboxPath);
 		} catch (IOException e) {
 			LOG.error(e.getMessage(), e);
 			throw new IllegalStateException(e);
@@ -197,24 +536,36 @@ public class FolderMonitor extends AbstractMonitor implements Runnable {
 				LOG.error(e.getMessage(), e);
 				throw new IllegalStateException(e);
 			}
-			if (timer != null) {
-				timer.cancel();
-				timer = null;
-			}
-			LOG.info("Folder '{}' content changed", outboxFolder.getAbsolutePath());
+			Path dir = (Path) key.watchable();
+			LOG.info("Folder '{}' content changed", dir);
 			for (WatchEvent<?> event : key.pollEvents()) {
-				if (event.kind() == OVERFLOW) continue;
-				File patch = outboxPath.resolve(((WatchEvent<Path>) event).context()).toFile();
-				if (fileFilter.accept(patch))
-					files.add(patch);
-			}
-			if (!files.isEmpty()) {
-				timer = new Timer();
-				timer.schedule(new ProcessFilesTimerTask(), NEW_FILES_PROCESS_DELAY);
-				LOG.debug("File processing timer is (re-)scheduled");
+				if (event.kind() == OVERFLOW) {
+					// New sub-folders might be missed as well
+					try {
+						register(watcher, dir);
+					} catch (IOException e) {
+						LOG.error(e.getMessage(), e);
+					}
+					rescan(dir);
+					continue;
+				}
+				Path path = dir.resolve(((WatchEvent<Path>) event).context());
+				if (Files.isDirectory(path)) {
+					// Files might be created in new sub-folder before it was registered
+					try {
+						register(watcher, path);
+					} catch (IOException e) {
+						LOG.error(e.getMessage(), e);
+					}
+					for (File file : listFiles(path).keySet())
+						addPendingFile(file);
+				} else if (fileFilter.accept(path.toFile()))
+					addPendingFile(path.toFile());
 			}
 			boolean valid = key.reset();
-			if (!valid) {
+			if (!valid && !dir.equals(outboxPath)) {
+				LOG.debug("Folder '{}' isn't watched anymore", dir);
+			} else if (!valid) {
 				LOG.error("Path '{}' isn't valid anymore", outboxPath);
 				postMessage(new Main.StopMessage(
 						String.format("Please verify validity of folder '%s' and re-run application", outboxPath)));
@@ -0,0 +1,162 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Delivers received files into inbox atomically: file is written under temporary hidden name
+ * and renamed to its final name only when it's complete, so that nobody sees partially written files.
+ * Every temporary name is unique, so that several emails carrying the same file may be decoded at the same time.
+ * <p/>
+ * Durability of delivered files is defined by {@link Sync} policy.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class InboxDelivery {
+
+	private static final Logger LOG = LoggerFactory.getLogger(InboxDelivery.class);
+	static final String TEMP_PREFIX = ".";
+	static final String TEMP_SUFFIX = ".part";
+
+	enum Sync {
+		/** Files are not synced, OS decides when data reaches disk. */
+		NONE,
+		/** Every file and its folder are synced on delivery. */
+		FILE,
+		/** Files delivered since the last {@link #sync()} are synced together. */
+		BATCH
+	}
+
+	/**
+	 * Completely written temporary file that waits to be delivered.
+	 */
+	static class Pending {
+		final File temp;
+		final File target;
+
+		Pending(File temp, File target) {
+			this.temp = temp;
+			this.target = target;
+		}
+
+		/**
+		 * Removes temporary file, when it isn't going to be delivered.
+		 */
+		void discard() {
+			if (temp.exists() && !temp.delete()) LOG.warn("Cannot remove temporary file '{}'", temp.getAbsolutePath());
+		}
+	}
+
+	private final Sync sync;
+	private final Set<File> unsynced = new LinkedHashSet<>();
+
+	InboxDelivery(Sync sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * @param target final file
+	 * @return new empty temporary file with unique name in folder of target file, to write content of target file to
+	 * @throws IOException if file cannot be created
+	 */
+	static File createTempFile(File target) throws IOException {
+		return Files.createTempFile(target.getParentFile().toPath(), TEMP_PREFIX + target.getName() + ".", TEMP_SUFFIX).toFile();
+	}
+
+	/**
+	 * @return {@code true} if file is a temporary one, i.e. it's being written or abandoned
+	 */
+	static boolean isTempFile(File file) {
+		return file.getName().startsWith(TEMP_PREFIX) && file.getName().endsWith(TEMP_SUFFIX);
+	}
+
+	/**
+	 * Renames completely written temporary file to the final one, replacing existing file if any.
+	 *
+	 * @param temp temporary file, see {@link #createTempFile(File)}
+	 * @param target final file
+	 * @throws IOException if file cannot be synced or renamed
+	 */
+	synchronized void deliver(File temp, File target) throws IOException {
+		if (sync == Sync.FILE) force(temp.toPath(), false);
+		try {
+			Files.move(temp.toPath(), target.toPath(), ATOMIC_MOVE, REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), target.toPath(), REPLACE_EXISTING);
+		}
+		if (sync == Sync.FILE) force(target.getParentFile().toPath(), true);
+		else if (sync == Sync.BATCH) unsynced.add(target);
+	}
+
+	/**
+	 * Syncs files delivered since the last call, as well as their folders.
+	 * Has to be called before the source of files is discarded, i.e. before emails are removed.
+	 *
+	 * @throws IOException if some file cannot be synced
+	 */
+	synchronized void sync() throws IOException {
+		if (unsynced.isEmpty()) return;
+		final long started = System.currentTimeMillis();
+		final Set<File> dirs = new LinkedHashSet<>();
+		for (File file : unsynced) {
+			if (file.exists()) force(file.toPath(), false);
+			dirs.add(file.getParentFile());
+		}
+		for (File dir : dirs)
+			force(dir.toPath(), true);
+		LOG.debug("{} file(s) in {} folder(s) are synced in {}ms",
+				unsynced.size(), dirs.size(), System.currentTimeMillis() - started);
+		unsynced.clear();
+	}
+
+	private static void force(Path path, boolean dir) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, dir ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Some platforms (e.g. Windows) don't allow to open folder, its entries are synced with files there
+			if (!dir) throw e;
+			LOG.trace("Cannot sync folder '{}': {}", path, e.getMessage());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "InboxDelivery {" + "sync=" + sync + ", unsynced=" + unsynced.size() + '}';
+	}
+}
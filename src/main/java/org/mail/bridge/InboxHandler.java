@@ -0,0 +1,231 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.mail.bridge.util.ThreadUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived process that handles received files, so that the process isn't started for every batch of them.
+ * <p/>
+ * Line protocol, in UTF-8:
+ * <ul>
+ * <li>bridge writes paths of received files relative to inbox folder, one per line, followed by an empty line;</li>
+ * <li>handler replies with {@code DONE <code>} line when batch is handled, code 0 means success;</li>
+ * <li>any other line of handler's output, as well as its error output, is written to the log;</li>
+ * <li>when bridge stops, handler's input is closed, so that handler should exit.</li>
+ * </ul>
+ * Handler is (re)started on demand, i.e. for the first batch and for the next batch after it has died.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class InboxHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(InboxHandler.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String DONE = "DONE";
+	private static final long EXIT_TIMEOUT = 5000;
+
+	// Marks end of handler's output in queue of lines
+	private static final String EOF = new String("EOF");
+
+	private final String name;
+	private final List<String> command;
+	private final Map<String, String> environment;
+	private final long timeout;
+	private final boolean virtual;
+
+	private Process process;
+	private Writer input;
+	private BlockingQueue<String> output;
+	private int starts;
+
+	/**
+	 * @param name name of handler for logging
+	 * @param command command line of handler
+	 * @param environment variables that are added to process environment
+	 * @param timeout max time in milliseconds to handle one batch, 0 means no limit
+	 * @param virtual whether to read handler's output by virtual threads
+	 */
+	InboxHandler(String name, List<String> command, Map<String, String> environment, long timeout, boolean virtual) {
+		this.name = name;
+		this.command = command;
+		this.environment = environment;
+		this.timeout = timeout;
+		this.virtual = virtual;
+	}
+
+	/**
+	 * Passes batch of files to handler and waits for the result of their handling.
+	 * If handler dies before the result, it's restarted and batch is passed once again.
+	 *
+	 * @param files paths of received files relative to inbox folder
+	 * @return result code reported by handler
+	 * @throws IOException if handler cannot be started, dies twice or doesn't reply in time
+	 * @throws InterruptedException if waiting thread was interrupted
+	 */
+	synchronized int handle(List<String> files) throws IOException, InterruptedException {
+		try {
+			return send(files);
+		} catch (EOFException e) {
+			LOG.warn("Handler '{}' died while handling {} file(s), restarting it", name, files.size());
+			destroy();
+			return send(files);
+		}
+	}
+
+	private int send(List<String> files) throws IOException, InterruptedException {
+		if (process == null) start();
+		try {
+			for (String file : files)
+				input.write(file + "\n");
+			input.write("\n");
+			input.flush();
+		} catch (IOException e) {
+			throw (EOFException) new EOFException("Handler '" + name + "' doesn't accept input").initCause(e);
+		}
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (true) {
+			String line = timeout > 0 ? output.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) : output.take();
+			//noinspection StringEquality
+			if (line == EOF) throw new EOFException("Handler '" + name + "' exited with code " + waitFor());
+			if (line == null) {
+				destroy();
+				throw new IOException(String.format("Handler '%s' didn't handle %d file(s) in %d ms, it is killed",
+						name, files.size(), timeout));
+			}
+			if (line.startsWith(DONE + " ")) {
+				try {
+					return Integer.parseInt(line.substring(DONE.length() + 1).trim());
+				} catch (NumberFormatException e) {
+					LOG.warn("Handler '{}' replied with invalid result '{}'", name, line);
+				}
+			} else LOG.info("[{}] {}", name, line);
+		}
+	}
+
+	private void start() throws IOException {
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.environment().putAll(environment);
+		builder.directory(new File(System.getProperty("user.dir")));
+		process = builder.start();
+		if (++starts > 1) LOG.info("Handler '{}' is restarted, {} start(s) so far", name, starts);
+		else LOG.info("Handler '{}' is started", name);
+		input = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), UTF8));
+		output = new LinkedBlockingQueue<>();
+		final BlockingQueue<String> lines = output;
+		final BufferedReader stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF8));
+		final BufferedReader stderr = new BufferedReader(new InputStreamReader(process.getErrorStream(), UTF8));
+		ThreadUtil.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (String line; (line = stdout.readLine()) != null; )
+						lines.add(line);
+				} catch (IOException e) {
+					LOG.debug("Output of handler '{}' is closed: {}", name, e.getMessage());
+				} finally {
+					lines.add(EOF);
+				}
+			}
+		}, "InboxHandler-out", true, virtual).start();
+		ThreadUtil.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (String line; (line = stderr.readLine()) != null; )
+						LOG.warn("[{}] {}", name, line);
+				} catch (IOException e) {
+					LOG.debug("Error output of handler '{}' is closed: {}", name, e.getMessage());
+				}
+			}
+		}, "InboxHandler-err", true, virtual).start();
+	}
+
+	private int waitFor() throws InterruptedException {
+		int code = process.waitFor();
+		destroy();
+		return code;
+	}
+
+	private void destroy() {
+		if (process == null) return;
+		process.destroy();
+		try {
+			input.close();
+		} catch (IOException ignored) {
+			// process is dead already
+		}
+		process = null;
+	}
+
+	/**
+	 * Closes input of handler, waits a bit for its exit and kills it if it's still alive.
+	 */
+	synchronized void stop() {
+		if (process == null) return;
+		final Process p = process;
+		try {
+			input.close();
+		} catch (IOException e) {
+			LOG.debug("Input of handler '{}' is closed already: {}", name, e.getMessage());
+		}
+		final Thread waiter = ThreadUtil.newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					LOG.info("Handler '{}' exited with code {}", name, p.waitFor());
+				} catch (InterruptedException ignored) {
+					// killed below
+				}
+			}
+		}, "InboxHandler-exit", true, virtual);
+		waiter.start();
+		try {
+			waiter.join(EXIT_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (waiter.isAlive()) {
+			LOG.warn("Handler '{}' didn't exit in {} ms, it is killed", name, EXIT_TIMEOUT);
+			waiter.interrupt();
+		}
+		process.destroy();
+		process = null;
+	}
+
+	@Override
+	public String toString() {
+		return "InboxHandler {" + "name='" + name + '\'' + ", command=" + command + ", starts=" + starts + '}';
+	}
+}
@@ -27,15 +27,16 @@ import microsoft.exchange.webservices.data.property.complex.ItemId;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.Namespace;
+import org.mail.bridge.util.EncryptUtil;
+import org.mail.bridge.util.ThreadUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.*;
 import java.lang.management.ManagementFactory;
-import java.util.List;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.*;
 
 /**
  * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
@@ -43,6 +44,12 @@ import java.util.concurrent.ConcurrentLinkedDeque;
 public class Main implements Runnable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(Main.class);
+	private static final String COMMAND_RUN = "run";
+	private static final String COMMAND_SEND = "send";
+	private static final String COMMAND_RECEIVE = "receive";
+	static final int EXIT_OK = 0;
+	static final int EXIT_CONFIG = 2;
+	static final int EXIT_FAILED = 3;
 
 	static class StopMessage extends Message<String> {
 		StopMessage(String stopMessage) {
@@ -50,71 +57,388 @@ public class Main implements Runnable {
 		}
 	}
 
-	private final FolderMonitor folderMonitor;
+	private final Map<String, Channel> channels = new LinkedHashMap<>();
+	private final Map<String, FolderMonitor> folderMonitors = new LinkedHashMap<>();
 	private final ExchangeMonitor exchangeMonitor;
-	private final ConcurrentLinkedDeque<Message<?>> messages = new ConcurrentLinkedDeque<>();
+	private final ExchangeSender exchangeSender;
+	private final ExecutorService scriptExecutor;
+	private final WorkArea workArea;
+	private final ConfigWatcher configWatcher;
+	private final Dispatcher inbound = new Dispatcher("InboundDispatcher");
+	private final Dispatcher outbound = new Dispatcher("OutboundDispatcher");
+	private final List<EmailBridge.ReceiveListener> receiveListeners = new CopyOnWriteArrayList<>();
+	private final Thread thread;
 	private final File pidFile;
+	private final boolean threadsVirtual;
+	private final boolean console;
+	private Config config;
 
 	public static void main(String[] args) throws Exception {
-		ArgumentParser parser = ArgumentParsers.newArgumentParser(Main.class.getSimpleName());
+		ArgumentParser parser = ArgumentParsers.newArgumentParser(Main.class.getSimpleName())
+				.description("Exit codes of one-shot commands: " + EXIT_OK + " - success, " +
+						EXIT_CONFIG + " - invalid configuration or files, " + EXIT_FAILED + " - some transfers failed");
 		parser.addArgument("-f", "--config")
 				.required(true)
 				.help("path to file with configuration properties");
+		parser.addArgument("-c", "--channel")
+				.help("channel to send files by, the first configured one by default");
+		parser.addArgument("command")
+				.nargs("?")
+				.choices(COMMAND_RUN, COMMAND_SEND, COMMAND_RECEIVE)
+				.setDefault(COMMAND_RUN)
+				.help("'" + COMMAND_RUN + "' - keep running and bridge folders (default); '" +
+						COMMAND_SEND + "' - send given files and exit; '" +
+						COMMAND_RECEIVE + "' - receive pending files, run inbox script and exit");
+		parser.addArgument("files")
+				.nargs("*")
+				.metavar("FILE")
+				.help("files to send");
 		Namespace res = parser.parseArgsOrFail(args);
+		final String command = res.getString("command");
+		if (!COMMAND_RUN.equals(command)) {
+			System.exit(runOnce(command, res));
+			return;
+		}
 		final Config config = new Config(res.getString("config"));
 		LOG.debug("Config settings: {}", config);
-		new Main(config);
+		new Main(config, res.getString("config"), true);
 	}
 
-	private Main(Config config) throws IOException {
-		folderMonitor = new FolderMonitor(config)
-				.addStopCallback(new MonitorCallback<String>() {
-					@Override
-					public void onMessage(Message<String> message) {
-						postMessage(message);
-					}
-				})
-				.addSendFileCallback(new MonitorCallback<List<File>>() {
-					@Override
-					public void onMessage(Message<List<File>> message) {
-						postMessage(message);
-					}
-				});
-		exchangeMonitor = new ExchangeMonitor(config)
-				.addStopCallback(new MonitorCallback<String>() {
-					@Override
-					public void onMessage(Message<String> message) {
-						postMessage(message);
-					}
-				})
-				.addNewMailCallback(new MonitorCallback<List<ItemId>>() {
-					@Override
-					public void onMessage(Message<List<ItemId>> message) {
-						postMessage(message);
-					}
-				})
+	/**
+	 * Runs one-shot command w/o subscription, outbox watching and PID file.
+	 *
+	 * @return exit code
+	 */
+	private static int runOnce(String command, Namespace res) {
+		final Config config;
+		try {
+			config = new Config(res.getString("config"));
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Cannot load configuration: " + e.getMessage(), e);
+			return EXIT_CONFIG;
+		}
+		LOG.debug("Config settings: {}", config);
+		try {
+			if (COMMAND_SEND.equals(command)) {
+				List<String> files = res.getList("files");
+				return send(config, res.getString("channel"), files == null ? Collections.<String>emptyList() : files);
+			}
+			return receive(config);
+		} catch (IOException e) {
+			LOG.error(e.getMessage(), e);
+			return EXIT_FAILED;
+		} catch (InterruptedException e) {
+			LOG.error("One-shot run is interrupted", e);
+			return EXIT_FAILED;
+		}
+	}
+
+	private static int send(Config config, String channelName, List<String> fileNames)
+			throws IOException, InterruptedException {
+		Config channelConfig = null;
+		for (Config c : config.getChannels())
+			if (channelName == null || c.getChannelName().equals(channelName)) {
+				channelConfig = c;
+				break;
+			}
+		if (channelConfig == null) {
+			LOG.error("Unknown channel '{}'", channelName);
+			return EXIT_CONFIG;
+		}
+		final List<File> files = new ArrayList<>();
+		for (String fileName : fileNames) {
+			File file = new File(fileName).getAbsoluteFile();
+			if (!file.isFile()) {
+				LOG.error("File '{}' doesn't exist", file);
+				return EXIT_CONFIG;
+			}
+			files.add(file);
+		}
+		if (files.isEmpty()) {
+			LOG.warn("There are no files to send");
+			return EXIT_OK;
+		}
+
+		final Channel channel = new Channel(channelConfig);
+		final File outbox = new File(channelConfig.getOutboxFolder());
+		final WorkArea workArea = new WorkArea(new File(System.getProperty("java.io.tmpdir")), config.isThreadsVirtual());
+		final ExchangeSender sender = new ExchangeSender(config, workArea);
+		try {
+			final List<Future<Void>> futures = new ArrayList<>(files.size());
+			for (File file : files)
+				// Files from outbox keep their relative path, the same way as they are sent by folder monitor
+				futures.add(sender.submit(channel, file, RelativePath.of(outbox, file), false));
+			int failed = 0;
+			for (Future<Void> future : futures)
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					++failed;
+				}
+			LOG.info("{} of {} file(s) are sent by channel '{}'", files.size() - failed, files.size(), channel.getName());
+			return failed == 0 ? EXIT_OK : EXIT_FAILED;
+		} finally {
+			sender.stop();
+			workArea.close();
+		}
+	}
+
+	private static int receive(Config config) throws IOException, InterruptedException {
+		final WorkArea workArea = new WorkArea(new File(System.getProperty("java.io.tmpdir")), config.isThreadsVirtual());
+		final ExecutorService scriptExecutor = Executors.newFixedThreadPool(config.getInboxScriptThreads(),
+				ThreadUtil.newThreadFactory("InboxScript", true, config.isThreadsVirtual()));
+		final Map<String, FolderMonitor> folderMonitors = new LinkedHashMap<>();
+		for (Config channelConfig : config.getChannels())
+			folderMonitors.put(channelConfig.getChannelName(), new FolderMonitor(new Channel(channelConfig), scriptExecutor));
+		final int[] received = {0};
+		final ExchangeMonitor exchangeMonitor = new ExchangeMonitor(config, config.getChannels(), workArea)
 				.addIncomingFilesReadyCallback(new MonitorCallback<List<File>>() {
 					@Override
 					public void onMessage(Message<List<File>> message) {
-						postMessage(message);
-					}
-				})
-				.addReopenMonitorCallback(new MonitorCallback<Void>() {
-					@Override
-					public void onMessage(Message<Void> message) {
-						postMessage(message);
+						String channel = ((ExchangeMonitor.NewIncomingFilesMessage) message).getChannel();
+						received[0] += message.getData().size();
+						folderMonitors.get(channel).runScriptAgainstReceivedFiles(message.getData());
 					}
 				});
-		pidFile = config.getPidFile().isEmpty() ? null : new File(config.getPidFile());
-		if (pidFile != null) {
-			if (pidFile.exists() && pidFile.delete()) LOG.debug("Old PID file was removed");
-			if (!config.isPidFileKeep()) pidFile.deleteOnExit();
+		try {
+			exchangeMonitor.scan();
+			// Missing emails are not waited for, since nothing would release their followers after exit
+			exchangeMonitor.releasePending();
+			scriptExecutor.shutdown();
+			// Files are passed to scripts before executor is shut down, so all their runs are completed after it
+			while (!scriptExecutor.awaitTermination(1, TimeUnit.MINUTES))
+				LOG.info("Waiting for inbox scripts to complete");
+			int failures = exchangeMonitor.getFailures();
+			for (FolderMonitor folderMonitor : folderMonitors.values())
+				failures += folderMonitor.getScriptFailures();
+			// Nothing retries paused emails after exit, so they are not received
+			int paused = exchangeMonitor.getPaused();
+			if (paused > 0) LOG.warn("{} email(s) are left on server, since storage budget of inbox is exhausted", paused);
+			failures += paused;
+			LOG.info("{} file(s) are received, {} failure(s)", received[0], failures);
+			return failures == 0 ? EXIT_OK : EXIT_FAILED;
+		} finally {
+			exchangeMonitor.stop();
+			scriptExecutor.shutdownNow();
+			for (FolderMonitor folderMonitor : folderMonitors.values())
+				folderMonitor.stop();
+			workArea.close();
 		}
-		new Thread(this, Main.class.getSimpleName()).start();
 	}
 
-	private synchronized void postMessage(Message<?> message) {
-		messages.addLast(message);
+	/**
+	 * @param console {@code true} if application is run from command line, so that stop reason is printed to console
+	 */
+	Main(Config config, String configFileName, boolean console) throws IOException {
+		this.config = config;
+		this.console = console;
+		threadsVirtual = config.isThreadsVirtual();
+		try {
+			workArea = new WorkArea(new File(System.getProperty("java.io.tmpdir")), threadsVirtual);
+			// Scripts of all channels share the same limit of concurrent runs
+			scriptExecutor = Executors.newFixedThreadPool(config.getInboxScriptThreads(),
+					ThreadUtil.newThreadFactory("InboxScript", true, threadsVirtual));
+			for (Config channelConfig : config.getChannels()) {
+				Channel channel = new Channel(channelConfig);
+				channels.put(channel.getName(), channel);
+				folderMonitors.put(channel.getName(), new FolderMonitor(channel, scriptExecutor)
+						.addStopCallback(new MonitorCallback<String>() {
+							@Override
+							public void onMessage(Message<String> message) {
+								postMessage(message);
+							}
+						})
+						.addSendFileCallback(new MonitorCallback<List<File>>() {
+							@Override
+							public void onMessage(Message<List<File>> message) {
+								outbound.post(message);
+							}
+						}));
+			}
+			if (channels.size() > 1) LOG.info("Bridging {} channels: {}", channels.size(), channels.values());
+			exchangeMonitor = new ExchangeMonitor(config, config.getChannels(), workArea)
+					.addStopCallback(new MonitorCallback<String>() {
+						@Override
+						public void onMessage(Message<String> message) {
+							postMessage(message);
+						}
+					})
+					.addNewMailCallback(new MonitorCallback<List<ItemId>>() {
+						@Override
+						public void onMessage(Message<List<ItemId>> message) {
+							postMessage(message);
+						}
+					})
+					.addIncomingFilesReadyCallback(new MonitorCallback<List<File>>() {
+						@Override
+						public void onMessage(Message<List<File>> message) {
+							postMessage(message);
+						}
+					})
+					.addReopenMonitorCallback(new MonitorCallback<Void>() {
+						@Override
+						public void onMessage(Message<Void> message) {
+							postMessage(message);
+						}
+					});
+			exchangeSender = new ExchangeSender(config, workArea);
+			configWatcher = new ConfigWatcher(configFileName, threadsVirtual)
+					.addReloadCallback(new MonitorCallback<Config>() {
+						@Override
+						public void onMessage(Message<Config> message) {
+							postMessage(message);
+						}
+					});
+			inbound
+					// Notifications wait while inbound pipeline is behind, so that EWS notification thread is slowed down
+					.addHandler(ExchangeMonitor.NewMailMessage.class, new MonitorCallback<List<ItemId>>() {
+						@Override
+						public void onMessage(Message<List<ItemId>> message) {
+							exchangeMonitor.processNewMail(message.getData());
+						}
+					}, EventBus.Backpressure.BLOCK, AbstractMonitor.CALLBACK_QUEUE_SIZE)
+					.addHandler(ExchangeMonitor.NewIncomingFilesMessage.class, new MonitorCallback<List<File>>() {
+						@Override
+						public void onMessage(Message<List<File>> message) {
+							String channel = ((ExchangeMonitor.NewIncomingFilesMessage) message).getChannel();
+							folderMonitors.get(channel).runScriptAgainstReceivedFiles(message.getData());
+							for (EmailBridge.ReceiveListener listener : receiveListeners)
+								try {
+									listener.onReceive(channel, Collections.unmodifiableList(message.getData()));
+								} catch (RuntimeException e) {
+									LOG.error(e.getMessage(), e);
+								}
+						}
+					})
+					// Several disconnects in a row need one reopening only
+					.addHandler(ExchangeMonitor.ReopenMonitorMessage.class, new MonitorCallback<Void>() {
+						@Override
+						public void onMessage(Message<Void> message) {
+							exchangeMonitor.scan().monitor();
+						}
+					}, EventBus.Backpressure.COALESCE, 1)
+					.addHandler(ConfigWatcher.ReloadConfigMessage.class, new MonitorCallback<Config>() {
+						@Override
+						public void onMessage(Message<Config> message) {
+							reload(message.getData());
+						}
+					})
+					.addHandler(StopMessage.class, new MonitorCallback<String>() {
+						@Override
+						public void onMessage(Message<String> message) {
+							if (Main.this.console) System.out.println(message.getData());
+							else LOG.info(message.getData());
+							shutdown();
+							outbound.stop();
+							inbound.stop();
+						}
+					});
+			outbound
+					.addHandler(FolderMonitor.SendFileMessage.class, new MonitorCallback<List<File>>() {
+						@Override
+						public void onMessage(Message<List<File>> message) {
+							String channel = ((FolderMonitor.SendFileMessage) message).getChannel();
+							exchangeSender.sendFiles(channels.get(channel), message.getData());
+						}
+					}, EventBus.Backpressure.BLOCK, AbstractMonitor.CALLBACK_QUEUE_SIZE);
+			if (threadsVirtual && !ThreadUtil.isVirtualSupported())
+				LOG.warn("Virtual threads are not supported by Java {}, platform threads are used instead",
+						System.getProperty("java.version"));
+			pidFile = config.getPidFile().isEmpty() ? null : new File(config.getPidFile());
+			if (pidFile != null) {
+				if (pidFile.exists() && pidFile.delete()) LOG.debug("Old PID file was removed");
+				if (!config.isPidFileKeep()) pidFile.deleteOnExit();
+			}
+			thread = new Thread(this, Main.class.getSimpleName());
+			thread.start();
+		} catch (IOException | RuntimeException e) {
+			// Don't leave lock of work area and threads of components that are created already
+			shutdown();
+			throw e;
+		}
+	}
+
+	/**
+	 * Stops components that are created, it's called on partially constructed instance as well.
+	 */
+	private void shutdown() {
+		if (configWatcher != null) configWatcher.stop();
+		if (exchangeMonitor != null) exchangeMonitor.stop();
+		if (exchangeSender != null) exchangeSender.stop();
+		if (scriptExecutor != null) scriptExecutor.shutdownNow();
+		for (FolderMonitor folderMonitor : folderMonitors.values())
+			folderMonitor.stop();
+		if (workArea != null) workArea.close();
+	}
+
+	private void postMessage(Message<?> message) {
+		inbound.post(message);
+	}
+
+	private Channel getChannel(String name) {
+		Channel channel = channels.get(name);
+		if (channel == null) throw new IllegalArgumentException("Unknown channel '" + name + "'");
+		return channel;
+	}
+
+	Set<String> getChannelNames() {
+		return Collections.unmodifiableSet(channels.keySet());
+	}
+
+	Future<Void> submit(String channel, File file, String name) {
+		if (!file.isFile()) throw new IllegalArgumentException("File '" + file.getAbsolutePath() + "' doesn't exist");
+		return exchangeSender.submit(getChannel(channel), file, name, false);
+	}
+
+	/**
+	 * Spools data into work area and submits it, so that data may be read from file as many times as needed.
+	 */
+	Future<Void> submit(String channel, String name, InputStream data) throws IOException {
+		Channel target = getChannel(channel);
+		String fileName = name.substring(name.lastIndexOf(RelativePath.SEPARATOR) + 1);
+		if (fileName.isEmpty()) throw new IllegalArgumentException("Name '" + name + "' has no file name");
+		File dir = workArea.createDir("submit-");
+		File file = new File(dir, fileName);
+		try (OutputStream os = new BufferedOutputStream(new FileOutputStream(file))) {
+			EncryptUtil.copy(data, os);
+		} catch (IOException e) {
+			workArea.remove(dir);
+			throw e;
+		}
+		return exchangeSender.submit(target, file, name, true);
+	}
+
+	void addReceiveListener(EmailBridge.ReceiveListener listener) {
+		receiveListeners.add(listener);
+	}
+
+	void stop(String message) {
+		postMessage(new StopMessage(message));
+	}
+
+	void join() throws InterruptedException {
+		thread.join();
+	}
+
+	/**
+	 * Applies changed configuration to running components. Configuration is applied as a whole or not at all,
+	 * so that it is rejected if any of settings that are read on startup only is changed.
+	 */
+	private void reload(Config newConfig) {
+		Set<String> changes = config.getStaticChanges(newConfig);
+		if (!changes.isEmpty()) {
+			LOG.warn("Configuration isn't reloaded, since changed settings {} require restart of application", changes);
+			return;
+		}
+		for (Config channelConfig : newConfig.getChannels()) {
+			channels.get(channelConfig.getChannelName()).setConfig(channelConfig);
+			folderMonitors.get(channelConfig.getChannelName()).reload(channelConfig);
+		}
+		exchangeMonitor.reload(newConfig.getChannels());
+		exchangeSender.reload(newConfig);
+		config = newConfig;
+		LOG.info("Configuration is reloaded");
+		LOG.debug("Config settings: {}", config);
 	}
 
 	@Override
@@ -136,37 +460,24 @@ public class Main implements Runnable {
 			}
 		}
 
-		exchangeMonitor.scan().monitor();
-		folderMonitor.scan().monitor();
-		while (true) {
-			try {
-				while (!messages.isEmpty()) {
-					Message<?> message = messages.removeFirst();
-					LOG.debug("Message received: {}", message);
-					if (message instanceof ExchangeMonitor.NewMailMessage)
-						exchangeMonitor.processNewMail(((ExchangeMonitor.NewMailMessage) message).getData());
-					else if (message instanceof ExchangeMonitor.NewIncomingFilesMessage)
-						folderMonitor.runScriptAgainstReceivedFiles(((ExchangeMonitor.NewIncomingFilesMessage) message).getData());
-					else if (message instanceof ExchangeMonitor.ReopenMonitorMessage)
-						exchangeMonitor.scan().monitor();
-					else if (message instanceof FolderMonitor.SendFileMessage)
-						exchangeMonitor.sendFiles(((FolderMonitor.SendFileMessage) message).getData());
-					else if (message instanceof StopMessage) {
-						System.out.println(((StopMessage) message).getData());
-						exchangeMonitor.stop();
-						folderMonitor.stop();
-						Thread.currentThread().interrupt();
-						break;
-					} else LOG.warn("Unsupported message {}", message);
-					Thread.sleep(10);
-				}
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				LOG.error(e.getMessage(), e);
-				break;
+		// Outbound pipeline runs in own thread, so that sending never blocks receiving and vice versa
+		ThreadUtil.newThread(new Runnable() {
+			@Override
+			public void run() {
+				for (FolderMonitor folderMonitor : folderMonitors.values())
+					folderMonitor.scan().monitor();
+				outbound.run();
 			}
-		}
-
-
+		}, "OutboundDispatcher", false, threadsVirtual).start();
+		// Subscription is set up while mailbox is scanned; mail that arrives meanwhile waits in inbound queue
+		ThreadUtil.newThread(new Runnable() {
+			@Override
+			public void run() {
+				exchangeMonitor.monitor();
+			}
+		}, "Subscription", true, threadsVirtual).start();
+		exchangeMonitor.scan();
+		configWatcher.scan().monitor();
+		inbound.run();
 	}
 }
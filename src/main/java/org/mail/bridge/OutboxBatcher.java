@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects outbox files into batches that are sent together.
+ * Batch is flushed as soon as any of configured limits is hit: amount of files, total size of files
+ * or time passed since the first file was added. Zero limit means no limit, except zero wait:
+ * then files added at once, e.g. found stable by one check, are sent together on the following {@link #poll}.
+ * <p/>
+ * Is not thread-safe.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class OutboxBatcher {
+
+	private int maxFiles;
+	private long maxBytes;
+	private long maxWait;
+	private List<File> batch = new ArrayList<>();
+	private long bytes;
+	private long started;
+
+	/**
+	 * @param maxFiles Max amount of files in batch
+	 * @param maxBytes Max total size of files in batch in bytes
+	 * @param maxWait Max time in milliseconds that the first file waits in batch
+	 */
+	OutboxBatcher(int maxFiles, long maxBytes, long maxWait) {
+		setLimits(maxFiles, maxBytes, maxWait);
+	}
+
+	/**
+	 * Changes limits of batches; the current batch is checked against them on next {@link #add} or {@link #poll}.
+	 *
+	 * @see #OutboxBatcher(int, long, long)
+	 */
+	void setLimits(int maxFiles, long maxBytes, long maxWait) {
+		this.maxFiles = maxFiles;
+		this.maxBytes = maxBytes;
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * Adds file to the current batch.
+	 *
+	 * @param file file to send
+	 * @param now current time in milliseconds
+	 * @return batch that is full or waited long enough and has to be sent, or {@code null}
+	 */
+	List<File> add(File file, long now) {
+		if (batch.isEmpty()) started = now;
+		batch.add(file);
+		bytes += file.length();
+		if ((maxFiles > 0 && batch.size() >= maxFiles) || (maxBytes > 0 && bytes >= maxBytes))
+			return flush();
+		return maxWait > 0 ? poll(now) : null;
+	}
+
+	/**
+	 * @param now current time in milliseconds
+	 * @return batch that waited long enough and has to be sent, or {@code null}
+	 */
+	List<File> poll(long now) {
+		return !batch.isEmpty() && now - started >= maxWait ? flush() : null;
+	}
+
+	/**
+	 * @return the current batch regardless of limits, may be empty
+	 */
+	List<File> flush() {
+		List<File> result = batch;
+		batch = new ArrayList<>();
+		bytes = 0;
+		return Collections.unmodifiableList(result);
+	}
+
+	boolean isEmpty() {
+		return batch.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "OutboxBatcher {" + "files=" + batch.size() + ", bytes=" + bytes + ", maxFiles=" + maxFiles +
+				", maxBytes=" + maxBytes + ", maxWait=" + maxWait + '}';
+	}
+}
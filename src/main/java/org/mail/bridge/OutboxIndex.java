@@ -0,0 +1,169 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Persistent index of outbox files that were handed over for sending.
+ * <p/>
+ * Every entry keeps path of file relative to outbox folder, its size and modification time at the moment
+ * it was queued, and its state. So files that were sent already but are kept in outbox
+ * (see {@code outbox.cleanup}) are not sent again after restart, unless they were changed since then.
+ * <p/>
+ * Index is kept in memory and is written into file by {@link #save()} if it was changed.
+ * Index file is plain text, one entry per line: {@code <state> <size> <mtime> <relative path>}.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class OutboxIndex {
+
+	private static final Logger LOG = LoggerFactory.getLogger(OutboxIndex.class);
+
+	enum State {
+		/** File is handed over to sender, but not sent completely yet. */
+		QUEUED,
+		/** Some emails of file were not sent, so it's sent again on next scan. */
+		FAILED,
+		/** File is sent. */
+		SENT
+	}
+
+	private static class Entry {
+		private final long size;
+		private final long modified;
+		private State state;
+
+		Entry(long size, long modified, State state) {
+			this.size = size;
+			this.modified = modified;
+			this.state = state;
+		}
+	}
+
+	private final File root;
+	private final File file;
+	private final Map<String, Entry> entries = new HashMap<>();
+	private boolean dirty;
+
+	/**
+	 * Creates index and loads its entries from file, if file exists.
+	 *
+	 * @param root outbox folder
+	 * @param file index file
+	 */
+	OutboxIndex(File root, File file) {
+		this.root = root;
+		this.file = file;
+		load();
+	}
+
+	private void load() {
+		if (!file.isFile()) return;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				String[] parts = line.split(" ", 4);
+				if (parts.length < 4) continue;
+				entries.put(parts[3], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), State.valueOf(parts[0])));
+			}
+			LOG.debug("Loaded {} entries from outbox index '{}'", entries.size(), file.getAbsolutePath());
+		} catch (IOException | IllegalArgumentException e) {
+			LOG.warn("Cannot read outbox index '" + file.getAbsolutePath() + "', all outbox files are considered as new", e);
+			entries.clear();
+		}
+	}
+
+	/**
+	 * @return state of file if it is indexed with the same size and modification time, otherwise {@code null}
+	 */
+	synchronized State getState(File file, long size, long modified) {
+		Entry entry = entries.get(RelativePath.of(root, file));
+		return entry != null && entry.size == size && entry.modified == modified ? entry.state : null;
+	}
+
+	synchronized void put(File file, long size, long modified, State state) {
+		entries.put(RelativePath.of(root, file), new Entry(size, modified, state));
+		dirty = true;
+	}
+
+	synchronized void setState(File file, State state) {
+		Entry entry = entries.get(RelativePath.of(root, file));
+		if (entry != null && entry.state != state) {
+			entry.state = state;
+			dirty = true;
+		}
+	}
+
+	synchronized void remove(File file) {
+		if (entries.remove(RelativePath.of(root, file)) != null) dirty = true;
+	}
+
+	/**
+	 * Removes entries of files that are not in outbox anymore.
+	 *
+	 * @param files all files that are in outbox now
+	 */
+	synchronized void retain(Collection<File> files) {
+		Set<String> paths = new HashSet<>();
+		for (File f : files)
+			paths.add(RelativePath.of(root, f));
+		if (entries.keySet().retainAll(paths)) dirty = true;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Writes index into file if it was changed since the last save. File is replaced atomically.
+	 */
+	synchronized void save() {
+		if (!dirty) return;
+		File temp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+				for (Map.Entry<String, Entry> e : entries.entrySet())
+					writer.write(e.getValue().state + " " + e.getValue().size + " " + e.getValue().modified + " " +
+							e.getKey() + "\n");
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+			LOG.debug("Saved {} entries into outbox index '{}'", entries.size(), file.getAbsolutePath());
+		} catch (IOException e) {
+			LOG.error("Cannot write outbox index '" + file.getAbsolutePath() + "'", e);
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "OutboxIndex {" + "file=" + file + ", entries=" + entries.size() + ", dirty=" + dirty + '}';
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.mail.bridge.util.BloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Persistent index of emails that were processed but are kept on server (see {@code email.inbox.cleanup}),
+ * so that they are not downloaded again.
+ * <p/>
+ * Index file is plain text, one email ID per line, and new IDs are appended to it. Only {@link BloomFilter} of IDs
+ * is kept in memory: most of checked emails are new ones, and they are answered w/o reading the file.
+ * IDs that might be processed are confirmed by one pass through the file per checked bunch of emails.
+ * During full scan of mailbox most of checked emails are kept ones, so the exact set of IDs is held in memory
+ * between {@link #cache()} and {@link #uncache()} instead of reading the file for every page of emails.
+ * <p/>
+ * IDs of emails that are not on server anymore are dropped by {@link #retain(Set)} after full scan of mailbox,
+ * so that index never grows bigger than the mailbox.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class ProcessedIndex {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ProcessedIndex.class);
+	private static final int MIN_CAPACITY = 10000;
+
+	private final File file;
+	private BloomFilter filter;
+	private Set<String> cached;
+
+	ProcessedIndex(File file) {
+		this.file = file;
+		load();
+	}
+
+	private Set<String> read() throws IOException {
+		final Set<String> result = new LinkedHashSet<>();
+		if (!file.isFile()) return result;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+				if (!line.isEmpty()) result.add(line);
+		}
+		return result;
+	}
+
+	/**
+	 * Builds filter of IDs from file, the filter is sized twice bigger than amount of IDs to let index grow.
+	 */
+	private void load() {
+		Set<String> ids;
+		try {
+			ids = read();
+		} catch (IOException e) {
+			LOG.warn("Cannot read processed email index '" + file.getAbsolutePath() + "', kept emails are processed again", e);
+			ids = Collections.emptySet();
+		}
+		filter = new BloomFilter(Math.max(MIN_CAPACITY, ids.size() * 2));
+		for (String id : ids)
+			filter.add(id);
+		LOG.debug("Loaded {} IDs from processed email index '{}'", ids.size(), file.getAbsolutePath());
+	}
+
+	/**
+	 * Holds IDs in memory until {@link #uncache()}, so that checks don't read the file.
+	 */
+	synchronized void cache() {
+		try {
+			cached = read();
+		} catch (IOException e) {
+			LOG.warn("Cannot read processed email index '" + file.getAbsolutePath() + "', it's read on every check", e);
+		}
+	}
+
+	synchronized void uncache() {
+		cached = null;
+	}
+
+	/**
+	 * @param ids IDs of emails to check
+	 * @return IDs of given emails that were processed already
+	 */
+	synchronized Set<String> getProcessed(Collection<String> ids) {
+		final Set<String> candidates = new HashSet<>();
+		for (String id : ids)
+			if (filter.mightContain(id)) candidates.add(id);
+		if (candidates.isEmpty()) return candidates;
+		try {
+			candidates.retainAll(cached != null ? cached : read());
+		} catch (IOException e) {
+			LOG.error("Cannot read processed email index '" + file.getAbsolutePath() + "', emails are processed again", e);
+			candidates.clear();
+		}
+		return candidates;
+	}
+
+	/**
+	 * Adds IDs of processed emails. IDs are written into file at once, so that they are kept even if process dies.
+	 */
+	synchronized void addAll(Collection<String> ids) {
+		if (ids.isEmpty()) return;
+		try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			for (String id : ids)
+				writer.write(id + "\n");
+		} catch (IOException e) {
+			LOG.error("Cannot write processed email index '" + file.getAbsolutePath() + "'", e);
+			return;
+		}
+		for (String id : ids)
+			filter.add(id);
+		if (cached != null) cached.addAll(ids);
+		if (filter.isFull()) load();
+	}
+
+	/**
+	 * Removes IDs of emails that are not on server anymore. File is replaced atomically.
+	 *
+	 * @param ids IDs of all emails that are on server now
+	 */
+	synchronized void retain(Set<String> ids) {
+		final Set<String> kept;
+		try {
+			kept = read();
+		} catch (IOException e) {
+			LOG.error("Cannot read processed email index '" + file.getAbsolutePath() + "'", e);
+			return;
+		}
+		if (cached != null) cached.retainAll(ids);
+		int size = kept.size();
+		if (!kept.retainAll(ids)) return;
+		File temp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+				for (String id : kept)
+					writer.write(id + "\n");
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LOG.debug("Removed {} IDs of deleted emails from processed email index", size - kept.size());
+		} catch (IOException e) {
+			LOG.error("Cannot write processed email index '" + file.getAbsolutePath() + "'", e);
+			return;
+		}
+		load();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ProcessedIndex {" + "file=" + file + ", filter=" + filter + '}';
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Converts path of outbox file relative to outbox folder into attachment name and back.
+ * <p/>
+ * Path separators are encoded as {@code %2F} (and {@code %} itself as {@code %25}), so that attachment name
+ * stays a plain file name. Name of file from the root of outbox folder is not changed unless it contains {@code %}.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class RelativePath {
+
+	static final char SEPARATOR = '/';
+
+	private RelativePath() {
+	}
+
+	/**
+	 * @param root folder
+	 * @param file file inside of folder or its sub-folders
+	 * @return path of file relative to folder with {@code /} separators,
+	 * or file name only if file is outside of folder
+	 */
+	static String of(File root, File file) {
+		Path rootPath = root.getAbsoluteFile().toPath().normalize();
+		Path filePath = file.getAbsoluteFile().toPath().normalize();
+		if (!filePath.startsWith(rootPath) || filePath.equals(rootPath)) return file.getName();
+		StringBuilder sb = new StringBuilder();
+		for (Path name : rootPath.relativize(filePath)) {
+			if (sb.length() > 0) sb.append(SEPARATOR);
+			sb.append(name.toString());
+		}
+		return sb.toString();
+	}
+
+	static String encode(String relativePath) {
+		return relativePath.replace("%", "%25").replace(String.valueOf(SEPARATOR), "%2F");
+	}
+
+	static String decode(String name) {
+		StringBuilder sb = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); ++i) {
+			String code = name.regionMatches(i, "%", 0, 1) && i + 3 <= name.length()
+					? name.substring(i + 1, i + 3).toUpperCase() : "";
+			if (code.equals("2F")) sb.append(SEPARATOR);
+			else if (code.equals("25")) sb.append('%');
+			else {
+				sb.append(name.charAt(i));
+				continue;
+			}
+			i += 2;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Resolves relative path against root folder and creates missing parent folders.
+	 *
+	 * @param root folder
+	 * @param relativePath path relative to folder with {@code /} separators
+	 * @return file inside of root folder
+	 * @throws IOException if path points outside of root folder or parent folders cannot be created
+	 */
+	static File resolve(File root, String relativePath) throws IOException {
+		Path rootPath = root.getAbsoluteFile().toPath().normalize();
+		Path path = rootPath;
+		for (String name : relativePath.split(String.valueOf(SEPARATOR)))
+			if (!name.isEmpty()) path = path.resolve(name);
+		path = path.normalize();
+		if (!path.startsWith(rootPath) || path.equals(rootPath))
+			throw new IOException("Path '" + relativePath + "' points outside of folder '" + rootPath + "'");
+		File parent = path.getParent().toFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Cannot create folder '" + parent.getAbsolutePath() + "'");
+		return path.toFile();
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.mail.bridge.util.Clock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Releases items in order of their sequences, though items may be offered in any order.
+ * <p/>
+ * Sequence consists of session, i.e. start time of sender, and number of email in the session starting from 1.
+ * Item that follows the last released one is released at once, together with buffered items that follow it.
+ * Other items are buffered until the missing ones come, but not longer than gap timeout: then the gap is skipped.
+ * The first item of a newer session follows any item of older session, so that restart of sender causes no waiting.
+ * Items that are not newer than the last released one are late, they are released at once.
+ * So are items which sequence is buffered already, since they are duplicates.
+ * <p/>
+ * The last released sequence is kept in file, so that order is kept across restarts.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class ReorderBuffer<T> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ReorderBuffer.class);
+
+	static class Sequence implements Comparable<Sequence> {
+		private final long session;
+		private final long number;
+
+		Sequence(long session, long number) {
+			this.session = session;
+			this.number = number;
+		}
+
+		/**
+		 * @param s sequence in form {@code <session>-<number>}
+		 * @return parsed sequence or {@code null} if string is malformed
+		 */
+		static Sequence parse(String s) {
+			if (s == null) return null;
+			String[] parts = s.trim().split("-", 2);
+			if (parts.length < 2) return null;
+			try {
+				return new Sequence(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		long getSession() {
+			return session;
+		}
+
+		long getNumber() {
+			return number;
+		}
+
+		/**
+		 * @param previous the last released sequence, or {@code null} if nothing was released yet
+		 * @return {@code true} if this sequence is the next one after given
+		 */
+		boolean follows(Sequence previous) {
+			if (previous == null || session > previous.session) return number == 1;
+			return session == previous.session && number == previous.number + 1;
+		}
+
+		@Override
+		public int compareTo(Sequence o) {
+			int c = Long.compare(session, o.session);
+			return c != 0 ? c : Long.compare(number, o.number);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return this == o || o instanceof Sequence && compareTo((Sequence) o) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * Long.valueOf(session).hashCode() + Long.valueOf(number).hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return session + "-" + number;
+		}
+	}
+
+	private static class Entry<T> {
+		private final T item;
+		private final long added;
+
+		Entry(T item, long added) {
+			this.item = item;
+			this.added = added;
+		}
+	}
+
+	private final File file;
+	private final Clock clock;
+	private final TreeMap<Sequence, Entry<T>> pending = new TreeMap<>();
+	private volatile long gapTimeout;
+	private Sequence last;
+
+	/**
+	 * @param file file where the last released sequence is kept, or {@code null} if it isn't kept
+	 * @param gapTimeout max time in milliseconds to wait for missing items, 0 disables ordering
+	 */
+	ReorderBuffer(File file, long gapTimeout) {
+		this(file, gapTimeout, Clock.SYSTEM);
+	}
+
+	ReorderBuffer(File file, long gapTimeout, Clock clock) {
+		this.file = file;
+		this.clock = clock;
+		this.gapTimeout = gapTimeout;
+		load();
+	}
+
+	private void load() {
+		if (file == null || !file.isFile()) return;
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			last = Sequence.parse(reader.readLine());
+			LOG.debug("Last received sequence is {}", last);
+		} catch (IOException e) {
+			LOG.warn("Cannot read sequence file '" + file.getAbsolutePath() + "', order of the first files is unknown", e);
+		}
+	}
+
+	private void save() {
+		if (file == null || last == null) return;
+		File temp = new File(file.getAbsolutePath() + ".tmp");
+		try {
+			try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+				writer.write(last + "\n");
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.error("Cannot write sequence file '" + file.getAbsolutePath() + "'", e);
+		}
+	}
+
+	void setGapTimeout(long gapTimeout) {
+		this.gapTimeout = gapTimeout;
+	}
+
+	/**
+	 * Adds item to buffer and takes off items that may be released in order.
+	 *
+	 * @param sequence sequence of item
+	 * @param item item to release in order
+	 * @return items that are released now in order of their sequences, may be empty
+	 */
+	synchronized List<T> offer(Sequence sequence, T item) {
+		if (last != null && sequence.compareTo(last) <= 0) {
+			LOG.warn("Sequence {} is late, since {} is released already", sequence, last);
+			return Collections.singletonList(item);
+		}
+		if (pending.containsKey(sequence)) {
+			// Sender reuses number of email which sending failed on its side, though email was delivered
+			LOG.warn("Sequence {} is duplicated, item is released w/o waiting", sequence);
+			return Collections.singletonList(item);
+		}
+		pending.put(sequence, new Entry<>(item, now()));
+		return release(gapTimeout <= 0 ? 0 : Long.MAX_VALUE);
+	}
+
+	/**
+	 * Skips gaps that are waited for longer than gap timeout.
+	 *
+	 * @return items that are released now in order of their sequences, may be empty
+	 */
+	synchronized List<T> expire() {
+		return release(gapTimeout);
+	}
+
+	/**
+	 * Skips all gaps, e.g. before the process exits.
+	 *
+	 * @return all buffered items in order of their sequences
+	 */
+	synchronized List<T> flush() {
+		return release(0);
+	}
+
+	/**
+	 * Drops buffered items w/o releasing them, e.g. when process stops. The last released sequence is kept.
+	 *
+	 * @return dropped items
+	 */
+	synchronized List<T> clear() {
+		final List<T> result = new ArrayList<>();
+		for (Entry<T> entry : pending.values())
+			result.add(entry.item);
+		pending.clear();
+		return result;
+	}
+
+	/**
+	 * @param timeout time in milliseconds after which gap before buffered item is skipped
+	 */
+	private List<T> release(long timeout) {
+		final List<T> result = new ArrayList<>();
+		final long now = now();
+		while (!pending.isEmpty()) {
+			Map.Entry<Sequence, Entry<T>> head = pending.firstEntry();
+			if (!head.getKey().follows(last)) {
+				if (now - head.getValue().added < timeout) break;
+				LOG.warn("Gap between sequences {} and {} is skipped after {}ms of waiting",
+						last, head.getKey(), now - head.getValue().added);
+			}
+			pending.pollFirstEntry();
+			result.add(head.getValue().item);
+			last = head.getKey();
+		}
+		if (!result.isEmpty()) save();
+		if (!pending.isEmpty())
+			LOG.debug("{} item(s) wait for sequence after {}", pending.size(), last);
+		return result;
+	}
+
+	/**
+	 * @return time in milliseconds until the gap timeout of the first buffered item expires,
+	 * or {@code -1} if buffer is empty
+	 */
+	synchronized long getWaitTime() {
+		if (pending.isEmpty()) return -1;
+		return Math.max(0, pending.firstEntry().getValue().added + gapTimeout - now());
+	}
+
+	private long now() {
+		return TimeUnit.NANOSECONDS.toMillis(clock.nanoTime());
+	}
+
+	synchronized int size() {
+		return pending.size();
+	}
+
+	synchronized Sequence getLast() {
+		return last;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ReorderBuffer {" + "file=" + file + ", last=" + last + ", pending=" + pending.size() + '}';
+	}
+}
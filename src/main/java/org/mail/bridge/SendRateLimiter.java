@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.mail.bridge.util.TokenBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shapes outbound traffic by 2 token buckets: bytes per second and messages per minute.
+ * Keeps statistics of messages sent during the last minute to report the current throughput.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class SendRateLimiter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SendRateLimiter.class);
+	private static final long WINDOW = TimeUnit.MINUTES.toNanos(1);
+	private static final long WAIT_REPORT = TimeUnit.SECONDS.toNanos(1);
+
+	private final TokenBucket bytes;
+	private final TokenBucket messages;
+	private final Deque<long[]> history = new ArrayDeque<>();
+
+	SendRateLimiter(Config config) {
+		bytes = new TokenBucket(config.getEmailSendRateBytes() * 1024.0, config.getEmailSendRateBytesBurst() * 1024.0);
+		messages = new TokenBucket(config.getEmailSendRateMessages() / 60.0, config.getEmailSendRateMessagesBurst());
+	}
+
+	/**
+	 * Waits until message of given size may be sent w/o exceeding configured limits.
+	 *
+	 * @param size encoded size of message in bytes
+	 * @throws InterruptedException if waiting thread was interrupted
+	 */
+	void acquire(long size) throws InterruptedException {
+		long wait = Math.max(messages.reserve(1), bytes.reserve(size));
+		if (wait >= WAIT_REPORT)
+			LOG.info("Outbound rate limit is reached, wait for {} second(s); {}", TimeUnit.NANOSECONDS.toSeconds(wait), this);
+		if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+		synchronized (history) {
+			history.addLast(new long[] {System.nanoTime(), size});
+		}
+	}
+
+	/**
+	 * @return amount of bytes sent during the last minute
+	 */
+	long getBytesPerMinute() {
+		long result = 0;
+		synchronized (history) {
+			purgeHistory();
+			for (long[] item : history)
+				result += item[1];
+		}
+		return result;
+	}
+
+	/**
+	 * @return amount of messages sent during the last minute
+	 */
+	int getMessagesPerMinute() {
+		synchronized (history) {
+			purgeHistory();
+			return history.size();
+		}
+	}
+
+	private void purgeHistory() {
+		long since = System.nanoTime() - WINDOW;
+		while (!history.isEmpty() && history.peekFirst()[0] < since)
+			history.removeFirst();
+	}
+
+	private static String format(TokenBucket bucket, double scale) {
+		return bucket.isUnlimited() ? "unlimited"
+				: String.format("%.1f of %.1f available", bucket.getAvailable() / scale, bucket.getCapacity() / scale);
+	}
+
+	@Override
+	public String toString() {
+		return "SendRateLimiter {" +
+				"current=" + getBytesPerMinute() / 60 / 1024 + " KB/s, " + getMessagesPerMinute() + " msg/min" +
+				", bytes=" + format(bytes, 1024) + " KB" +
+				", messages=" + format(messages, 1) +
+				'}';
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Accounts disk space used by the bridge in one storage area, i.e. temp or inbox folder.
+ * <p/>
+ * Usage is either measured as total size of files in the folder, or is a sum of space reserved
+ * by the bridge itself, when folder is shared with others (like system temp folder).
+ * Area has room while its usage fits the budget and free disk space doesn't fall below the minimum.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class StorageBudget {
+
+	private static final Logger LOG = LoggerFactory.getLogger(StorageBudget.class);
+	/** Time in milliseconds while measured usage is considered as actual. */
+	private static final long USAGE_TTL = 5000;
+	/** Time in milliseconds to wait for released space before checking it again. */
+	private static final long WAIT_INTERVAL = 1000;
+	/** Fill ratio of budget, starting from which area is considered as nearly full. */
+	static final double NEARLY_FULL = 0.9;
+
+	private final String name;
+	private final File folder;
+	private final long budget;
+	private final long minFree;
+	private final boolean measured;
+	private long reserved;
+	private long measuredUsage;
+	private long measuredTime;
+
+	/**
+	 * @param name name of area for logging
+	 * @param folder folder of area
+	 * @param budget max usage of area in bytes, 0 means no limit
+	 * @param minFree min free space in bytes on disk of area, 0 means no limit
+	 * @param measured whether usage is size of folder, otherwise it's space reserved only
+	 */
+	StorageBudget(String name, File folder, long budget, long minFree, boolean measured) {
+		this.name = name;
+		this.folder = folder;
+		this.budget = budget;
+		this.minFree = minFree;
+		this.measured = measured;
+	}
+
+	boolean isUnlimited() {
+		return budget <= 0 && minFree <= 0;
+	}
+
+	/**
+	 * @return space in bytes used in area
+	 */
+	synchronized long getUsage() {
+		if (measured && (measuredTime == 0 || System.currentTimeMillis() - measuredTime > USAGE_TTL)) {
+			measuredUsage = measure();
+			measuredTime = System.currentTimeMillis();
+		}
+		return reserved + (measured ? measuredUsage : 0);
+	}
+
+	/**
+	 * @return free space in bytes on disk of area
+	 */
+	long getFreeSpace() {
+		File dir = folder.getAbsoluteFile();
+		while (dir != null && !dir.exists())
+			dir = dir.getParentFile();
+		return dir == null ? Long.MAX_VALUE : dir.getUsableSpace();
+	}
+
+	/**
+	 * @param size space in bytes that is going to be used
+	 * @return {@code true} if area has room for given amount of data
+	 */
+	synchronized boolean hasRoom(long size) {
+		return isUnlimited()
+				|| ((budget <= 0 || getUsage() + size <= budget) && (minFree <= 0 || getFreeSpace() - size >= minFree));
+	}
+
+	/**
+	 * @return {@code true} if area is close to its limits, so that abandoned data should be evicted
+	 */
+	synchronized boolean isNearlyFull() {
+		return !isUnlimited()
+				&& ((budget > 0 && getUsage() >= budget * NEARLY_FULL) || (minFree > 0 && getFreeSpace() * NEARLY_FULL < minFree));
+	}
+
+	/**
+	 * Waits until area has room for given amount of data, and reserves it.
+	 * If nothing is reserved, then space is reserved anyway, so that data bigger than budget doesn't stall forever.
+	 *
+	 * @param size space in bytes to reserve
+	 * @throws InterruptedException if waiting thread was interrupted
+	 */
+	synchronized void acquire(long size) throws InterruptedException {
+		boolean reported = false;
+		while (!hasRoom(size) && reserved > 0) {
+			if (!reported) {
+				LOG.info("Storage budget of {} is exhausted, waiting for {} byte(s) to be released; {}", name, size, this);
+				reported = true;
+			}
+			wait(WAIT_INTERVAL);
+		}
+		reserved += size;
+	}
+
+	/**
+	 * Releases space reserved by {@link #acquire(long)}.
+	 */
+	synchronized void release(long size) {
+		reserved -= size;
+		notifyAll();
+	}
+
+	/**
+	 * Removes files that match the filter and were not modified for given time, e.g. parts of abandoned transfers.
+	 *
+	 * @param maxAge age in milliseconds of files to remove, 0 means nothing is removed
+	 * @param filter filter of files that may be removed
+	 * @return amount of removed files
+	 */
+	synchronized int evict(long maxAge, final FileFilter filter) {
+		if (maxAge <= 0 || !folder.isDirectory()) return 0;
+		final long before = System.currentTimeMillis() - maxAge;
+		final int[] count = {0};
+		try {
+			Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					File f = file.toFile();
+					if (attrs.isRegularFile() && attrs.lastModifiedTime().toMillis() < before && filter.accept(f)) {
+						if (f.delete()) {
+							LOG.info("Abandoned file '{}' of {} is evicted", f.getAbsolutePath(), name);
+							++count[0];
+						} else LOG.warn("Cannot remove abandoned file '{}'", f.getAbsolutePath());
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			LOG.error(e.getMessage(), e);
+		}
+		if (count[0] > 0) measuredTime = 0;
+		return count[0];
+	}
+
+	private long measure() {
+		if (!folder.isDirectory()) return 0;
+		final long[] size = {0};
+		try {
+			Files.walkFileTree(folder.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					size[0] += attrs.size();
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			LOG.error(e.getMessage(), e);
+		}
+		return size[0];
+	}
+
+	@Override
+	public String toString() {
+		return "StorageBudget {" +
+				"name='" + name + '\'' +
+				", usage=" + getUsage() / 1024 / 1024 + " MB" +
+				", budget=" + (budget > 0 ? budget / 1024 / 1024 + " MB" : "unlimited") +
+				", free=" + getFreeSpace() / 1024 / 1024 + " MB" +
+				", minFree=" + minFree / 1024 / 1024 + " MB" +
+				'}';
+	}
+}
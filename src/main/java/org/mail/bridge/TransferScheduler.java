@@ -0,0 +1,247 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.mail.bridge.util.ThreadUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs outbound transfers step by step (one email per step) in its own thread.
+ * <p/>
+ * Transfers are put into lanes by their priority. The highest non-empty lane is served first, but a lower lane
+ * that was skipped {@link #STARVATION_LIMIT} times in a row is served anyway, so large transfers keep going.
+ * Transfers of the same lane are served in round-robin manner, so their volumes are interleaved.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class TransferScheduler implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(TransferScheduler.class);
+	static final int STARVATION_LIMIT = 8;
+
+	enum Priority {
+		HIGH, NORMAL, LOW
+	}
+
+	abstract static class Transfer {
+		private final String name;
+		private final Priority priority;
+
+		Transfer(String name, Priority priority) {
+			this.name = name;
+			this.priority = priority;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		Priority getPriority() {
+			return priority;
+		}
+
+		/**
+		 * @return {@code true} if transfer has more steps to perform
+		 */
+		abstract boolean hasNext();
+
+		/**
+		 * Performs next step of transfer, e.g. sends next email.
+		 */
+		abstract void next();
+
+		/**
+		 * Is called once when all steps of transfer are performed.
+		 */
+		abstract void complete();
+
+		@Override
+		public String toString() {
+			return "Transfer {" + "name='" + name + '\'' + ", priority=" + priority + '}';
+		}
+	}
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final Map<Priority, Deque<Transfer>> lanes = new EnumMap<>(Priority.class);
+	private final Map<Priority, Integer> skipped = new EnumMap<>(Priority.class);
+	private final String name;
+	private final boolean virtual;
+	private Thread thread;
+
+	TransferScheduler(String name, boolean virtual) {
+		this.name = name;
+		this.virtual = virtual;
+		for (Priority priority : Priority.values()) {
+			lanes.put(priority, new ArrayDeque<Transfer>());
+			skipped.put(priority, 0);
+		}
+	}
+
+	void submit(Transfer transfer) {
+		lock.lock();
+		try {
+			add(transfer);
+			if (thread == null) {
+				thread = ThreadUtil.newThread(this, name, false, virtual);
+				thread.start();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts transfer into its lane w/o starting the thread.
+	 */
+	void add(Transfer transfer) {
+		lock.lock();
+		try {
+			lanes.get(transfer.getPriority()).addLast(transfer);
+			LOG.debug("{} is scheduled", transfer);
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void stop() {
+		lock.lock();
+		try {
+			if (thread != null) {
+				thread.interrupt();
+				thread = null;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			int result = 0;
+			for (Deque<Transfer> lane : lanes.values())
+				result += lane.size();
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Transfer take() throws InterruptedException {
+		lock.lock();
+		try {
+			Transfer result;
+			while ((result = poll()) == null)
+				available.await();
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes off transfer which step is to be performed next.
+	 *
+	 * @return selected transfer or {@code null} if there are no transfers
+	 */
+	Transfer poll() {
+		lock.lock();
+		try {
+			Priority selected = selectLane();
+			if (selected == null) return null;
+			for (Priority priority : Priority.values())
+				if (priority == selected) skipped.put(priority, 0);
+				else if (!lanes.get(priority).isEmpty()) skipped.put(priority, skipped.get(priority) + 1);
+			return lanes.get(selected).pollFirst();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Priority selectLane() {
+		Priority result = null;
+		for (Priority priority : Priority.values())
+			if (!lanes.get(priority).isEmpty()) {
+				if (result == null) result = priority;
+				else if (skipped.get(priority) >= STARVATION_LIMIT) return priority;
+			}
+		return result;
+	}
+
+	private void requeue(Transfer transfer) {
+		lock.lock();
+		try {
+			lanes.get(transfer.getPriority()).addLast(transfer);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Transfer transfer;
+				try {
+					transfer = take();
+				} catch (InterruptedException e) {
+					LOG.debug("Scheduler is interrupted");
+					break;
+				}
+				// Failure of one transfer must not stop the others, since this thread is the only one that sends
+				try {
+					if (transfer.hasNext()) transfer.next();
+				} catch (Exception e) {
+					LOG.error(e.getMessage(), e);
+				}
+				try {
+					if (transfer.hasNext()) requeue(transfer);
+					else transfer.complete();
+				} catch (Exception e) {
+					LOG.error("Cannot complete " + transfer, e);
+				}
+			}
+		} finally {
+			lock.lock();
+			try {
+				// Let next submit start new thread, if this one dies unexpectedly
+				if (thread == Thread.currentThread()) thread = null;
+			} finally {
+				lock.unlock();
+			}
+		}
+		LOG.info("Scheduler is stopped, {} transfer(s) are left unsent", size());
+	}
+}
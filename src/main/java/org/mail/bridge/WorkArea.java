@@ -0,0 +1,216 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge;
+
+import org.mail.bridge.util.ThreadUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scratch area of the process for temporary folders, e.g. prepared attachments and unzipped volumes.
+ * <p/>
+ * All temporary folders are created under one root folder that is owned by the process while it runs:
+ * root keeps locked file, so that roots of crashed processes are recognized and swept at startup.
+ * Temporary folders are removed in background, so that callers never wait for file system.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+class WorkArea {
+
+	private static final Logger LOG = LoggerFactory.getLogger(WorkArea.class);
+	static final String PREFIX = "eb-";
+	private static final String ROOT_PREFIX = PREFIX + "work-";
+	private static final String LOCK_FILE = ".lock";
+	/** Age of temporary folders of older versions, after which they are considered as orphaned. */
+	private static final long LEGACY_AGE = TimeUnit.DAYS.toMillis(1);
+	/** Time for just created root to get its lock file. */
+	private static final long ROOT_GRACE = TimeUnit.MINUTES.toMillis(1);
+	private static final long CLOSE_TIMEOUT = 5000;
+
+	private final File parent;
+	private final File root;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private final ExecutorService cleaner;
+
+	/**
+	 * Creates root folder of the process and starts sweeping of orphaned folders in background.
+	 *
+	 * @param parent folder to create root in, usually system temp folder
+	 * @param virtual whether to clean up by virtual thread
+	 * @throws IOException if root folder cannot be created
+	 */
+	WorkArea(File parent, boolean virtual) throws IOException {
+		this.parent = parent;
+		root = Files.createTempDirectory(parent.toPath(), ROOT_PREFIX).toFile();
+		lockChannel = FileChannel.open(new File(root, LOCK_FILE).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		lock = lockChannel.tryLock();
+		cleaner = Executors.newSingleThreadExecutor(ThreadUtil.newThreadFactory("WorkAreaCleaner", true, virtual));
+		cleaner.execute(new Runnable() {
+			@Override
+			public void run() {
+				sweep();
+			}
+		});
+		LOG.debug("Work area '{}' is created", root.getAbsolutePath());
+	}
+
+	File getRoot() {
+		return root;
+	}
+
+	/**
+	 * @param prefix prefix of folder name
+	 * @return new empty folder in work area
+	 * @throws IOException if folder cannot be created
+	 */
+	File createDir(String prefix) throws IOException {
+		File dir = Files.createTempDirectory(root.toPath(), prefix).toFile();
+		LOG.debug("Created temporary folder '{}'", dir.getAbsolutePath());
+		return dir;
+	}
+
+	/**
+	 * Removes folder with all its content in background.
+	 */
+	void remove(final File dir) {
+		if (dir == null) return;
+		try {
+			cleaner.execute(new Runnable() {
+				@Override
+				public void run() {
+					delete(dir);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			delete(dir);
+		}
+	}
+
+	/**
+	 * Waits for pending removals and removes root folder of the process.
+	 */
+	void close() {
+		cleaner.shutdown();
+		try {
+			if (!cleaner.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+				LOG.warn("Work area cleanup isn't finished in {}ms", CLOSE_TIMEOUT);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if (lock != null) lock.release();
+			lockChannel.close();
+		} catch (IOException e) {
+			LOG.warn("Cannot release lock of work area: {}", e.getMessage());
+		}
+		delete(root);
+	}
+
+	/**
+	 * Removes roots of processes that are not running anymore, as well as old temporary folders of older versions.
+	 */
+	private void sweep() {
+		File[] dirs = parent.listFiles();
+		if (dirs == null) return;
+		for (File dir : dirs) {
+			String name = dir.getName();
+			if (!dir.isDirectory() || !name.startsWith(PREFIX) || dir.equals(root)) continue;
+			boolean orphaned;
+			if (name.startsWith(ROOT_PREFIX)) {
+				File lockFile = new File(dir, LOCK_FILE);
+				orphaned = lockFile.exists() ? !isLocked(lockFile)
+						: dir.lastModified() < System.currentTimeMillis() - ROOT_GRACE;
+			}
+			else orphaned = (name.startsWith(PREFIX + "attach-") || name.startsWith(PREFIX + "unzip-"))
+					&& dir.lastModified() < System.currentTimeMillis() - LEGACY_AGE;
+			if (orphaned) {
+				LOG.info("Sweeping orphaned temporary folder '{}'", dir.getAbsolutePath());
+				delete(dir);
+			}
+		}
+	}
+
+	private static boolean isLocked(File lockFile) {
+		try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+			FileLock l = channel.tryLock();
+			if (l == null) return true;
+			l.release();
+			return false;
+		} catch (OverlappingFileLockException e) {
+			// Locked by this process, i.e. by another work area
+			return true;
+		} catch (IOException e) {
+			LOG.debug("Cannot check lock '{}': {}", lockFile.getAbsolutePath(), e.getMessage());
+			return true;
+		}
+	}
+
+	/**
+	 * Removes file or folder with all its content.
+	 *
+	 * @return {@code true} if nothing is left
+	 */
+	static boolean delete(File dir) {
+		if (dir == null || !dir.exists()) return true;
+		try {
+			Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.deleteIfExists(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+					Files.deleteIfExists(d);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			LOG.debug("Temporary folder '{}' was successfully removed", dir.getAbsolutePath());
+			return true;
+		} catch (IOException e) {
+			LOG.warn("Cannot remove temporary folder '{}': {}", dir.getAbsolutePath(), e.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "WorkArea {" + "root='" + root.getAbsolutePath() + '\'' + '}';
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filter of strings: answers whether string was never added, or might be added.
+ * <p/>
+ * Positions of bits are derived from 2 independent hashes by double hashing, so that the filter needs
+ * no hash functions besides them. About 10 bits per expected entry with 7 hashes give ~1% of false positives.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class BloomFilter {
+
+	public static final int BITS_PER_ENTRY = 10;
+	private static final int HASHES = 7;
+
+	private final long[] bits;
+	private final long size;
+	private final int capacity;
+	private int count;
+
+	/**
+	 * @param capacity
+	 *          Amount of entries, starting from which rate of false positives grows over ~1%.
+	 */
+	public BloomFilter(int capacity) {
+		this.capacity = Math.max(capacity, 64);
+		bits = new long[(int) (((long) this.capacity * BITS_PER_ENTRY + 63) / 64)];
+		size = (long) bits.length * 64;
+	}
+
+	private static int fnv(byte[] data) {
+		int h = 0x811c9dc5;
+		for (byte b : data)
+			h = (h ^ (b & 0xff)) * 0x01000193;
+		return h;
+	}
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		return h ^ h >>> 16;
+	}
+
+	private long[] positions(String value) {
+		byte[] data = value.getBytes(StandardCharsets.UTF_8);
+		long h1 = mix(value.hashCode()) & 0xffffffffL;
+		long h2 = fnv(data) & 0xffffffffL | 1;
+		long[] result = new long[HASHES];
+		for (int i = 0; i < HASHES; ++i)
+			result[i] = (h1 + i * h2) % size;
+		return result;
+	}
+
+	public void add(String value) {
+		for (long p : positions(value))
+			bits[(int) (p >>> 6)] |= 1L << p;
+		++count;
+	}
+
+	/**
+	 * @return {@code false} if value was never added, {@code true} if it might be added
+	 */
+	public boolean mightContain(String value) {
+		for (long p : positions(value))
+			if ((bits[(int) (p >>> 6)] & 1L << p) == 0) return false;
+		return true;
+	}
+
+	/**
+	 * @return amount of added values, including duplicates
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return {@code true} if more values were added than filter was sized for
+	 */
+	public boolean isFull() {
+		return count > capacity;
+	}
+
+	@Override
+	public String toString() {
+		return "BloomFilter {" + "count=" + count + ", capacity=" + capacity + ", bits=" + size + '}';
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates either platform or virtual threads.
+ * <p/>
+ * Virtual threads are available since Java 21 only, so they are accessed by reflection, letting the code
+ * be still compiled and run on older JDK. If virtual threads are requested but not supported by current JVM,
+ * platform threads are created instead.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class ThreadUtil {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ThreadUtil.class);
+
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_UNSTARTED;
+
+	static {
+		Method ofVirtual = null, builderName = null, builderUnstarted = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			builderName = builder.getMethod("name", String.class);
+			builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			LOG.trace("Virtual threads are not supported by JVM {}", System.getProperty("java.version"));
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_UNSTARTED = builderUnstarted;
+	}
+
+	public static boolean isVirtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Creates new unstarted thread.
+	 *
+	 * @param runnable
+	 *          Task to run in thread
+	 * @param name
+	 *          Name of thread
+	 * @param daemon
+	 *          Whether platform thread is a daemon one. Virtual threads are always daemons.
+	 * @param virtual
+	 *          Whether to create virtual thread if it is supported by JVM
+	 * @return New thread that is not started yet
+	 */
+	public static Thread newThread(Runnable runnable, String name, boolean daemon, boolean virtual) {
+		if (virtual && isVirtualSupported())
+			try {
+				Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+			} catch (ReflectiveOperationException e) {
+				LOG.warn("Cannot create virtual thread '" + name + "', platform one is used instead", e);
+			}
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(daemon);
+		return thread;
+	}
+
+	/**
+	 * Creates thread factory that names threads as {@code <prefix>-<number>}.
+	 *
+	 * @see #newThread(Runnable, String, boolean, boolean)
+	 */
+	public static ThreadFactory newThreadFactory(final String prefix, final boolean daemon, final boolean virtual) {
+		return new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return ThreadUtil.newThread(r, prefix + "-" + counter.incrementAndGet(), daemon, virtual);
+			}
+		};
+	}
+}
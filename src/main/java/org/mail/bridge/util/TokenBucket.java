@@ -0,0 +1,105 @@
+/*
+ * The MIT License (MIT)
+ * <p/>
+ * Copyright (c) 2015 Maksym Dominichenko
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.mail.bridge.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classic token bucket: tokens are added with constant rate up to the burst capacity.
+ * <p/>
+ * Amount of tokens that is bigger than capacity may be taken as well - in this case bucket goes into debt, so
+ * following consumers wait until the debt is paid off. This way long-term rate never exceeds configured one.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class TokenBucket {
+
+	private final Clock clock;
+	private final double rate;
+	private final double capacity;
+	private double tokens;
+	private long updated;
+
+	/**
+	 * @param rate
+	 *          Amount of tokens added per second. Zero or negative value means unlimited bucket.
+	 * @param capacity
+	 *          Max amount of tokens that bucket may keep, i.e. allowed burst.
+	 */
+	public TokenBucket(double rate, double capacity) {
+		this(rate, capacity, Clock.SYSTEM);
+	}
+
+	TokenBucket(double rate, double capacity, Clock clock) {
+		this.clock = clock;
+		this.rate = rate;
+		this.capacity = Math.max(capacity, 1);
+		this.tokens = this.capacity;
+		this.updated = clock.nanoTime();
+	}
+
+	public boolean isUnlimited() {
+		return rate <= 0;
+	}
+
+	public double getCapacity() {
+		return capacity;
+	}
+
+	private void refill() {
+		long now = clock.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - updated) * rate / TimeUnit.SECONDS.toNanos(1));
+		updated = now;
+	}
+
+	/**
+	 * Takes tokens from bucket regardless of their availability.
+	 *
+	 * @param amount
+	 *          Amount of tokens to take
+	 * @return Time in nanoseconds that caller should wait before to proceed
+	 */
+	public synchronized long reserve(double amount) {
+		if (isUnlimited()) return 0;
+		refill();
+		// Don't wait for more tokens than bucket can ever keep, let it go into debt instead
+		double wait = Math.min(amount, capacity) - tokens;
+		tokens -= amount;
+		return wait <= 0 ? 0 : (long) (wait * TimeUnit.SECONDS.toNanos(1) / rate);
+	}
+
+	/**
+	 * @return Amount of tokens that may be taken w/o waiting. Negative value means debt.
+	 */
+	public synchronized double getAvailable() {
+		if (isUnlimited()) return Double.POSITIVE_INFINITY;
+		refill();
+		return tokens;
+	}
+
+	@Override
+	public String toString() {
+		return "TokenBucket {" + "rate=" + rate + ", capacity=" + capacity + ", available=" + getAvailable() + '}';
+	}
+}
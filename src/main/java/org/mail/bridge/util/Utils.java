@@ -35,7 +35,7 @@ public class Utils {
 	public static final Comparator<File> LAST_MODIFIED_COMPARATOR = new Comparator<File>() {
 		@Override
 		public int compare(File o1, File o2) {
-			return (int) (o1.lastModified() - o2.lastModified());
+			return Long.compare(o1.lastModified(), o2.lastModified());
 		}
 	};
 
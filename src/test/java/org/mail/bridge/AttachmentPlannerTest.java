@@ -0,0 +1,96 @@
+package org.mail.bridge;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class AttachmentPlannerTest extends TempDirFixture {
+
+	private static final long KB = 1024;
+	private static final long MAX_SIZE = 1024 * KB;
+
+	@Test
+	public void testEncodedSize() {
+		assertEquals(0, AttachmentPlanner.encodedSize(0));
+		assertEquals(6, AttachmentPlanner.encodedSize(1));
+		assertEquals(78, AttachmentPlanner.encodedSize(57));
+		assertEquals(84, AttachmentPlanner.encodedSize(58));
+		assertTrue(AttachmentPlanner.encodedSize(MAX_SIZE) > MAX_SIZE * 4 / 3);
+	}
+
+	@Test
+	public void testVolumeFits() {
+		AttachmentPlanner planner = new AttachmentPlanner(MAX_SIZE);
+		long volume = planner.getVolumeSize();
+		assertTrue(planner.fits(volume + AttachmentPlanner.CIPHER_OVERHEAD));
+		assertFalse(planner.fits(volume + AttachmentPlanner.CIPHER_OVERHEAD + 4));
+	}
+
+	@Test
+	public void testSmallFilesAreNotSplit() throws IOException {
+		File big = createFile("big", 3 * MAX_SIZE);
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < 10; ++i)
+			files.add(createFile("small" + i, 10 * KB));
+		files.add(2, big);
+
+		AttachmentPlanner.Plan plan = new AttachmentPlanner(MAX_SIZE).plan(files);
+		assertEquals(Arrays.asList(big), plan.getOversized());
+		assertEquals(1, plan.getMessages().size());
+		assertEquals(10, plan.getMessages().get(0).size());
+	}
+
+	@Test
+	public void testFirstFitDecreasing() throws IOException {
+		List<File> files = Arrays.asList(
+				createFile("a", 300 * KB),
+				createFile("b", 400 * KB),
+				createFile("c", 200 * KB),
+				createFile("d", 150 * KB),
+				createFile("e", 250 * KB));
+
+		AttachmentPlanner.Plan plan = new AttachmentPlanner(MAX_SIZE).plan(files);
+		assertTrue(plan.getOversized().isEmpty());
+		assertEquals(2, plan.getMessages().size());
+		assertEquals(Arrays.asList(files.get(0), files.get(1)), plan.getMessages().get(0));
+		assertEquals(Arrays.asList(files.get(2), files.get(3), files.get(4)), plan.getMessages().get(1));
+		for (List<File> message : plan.getMessages()) {
+			long size = AttachmentPlanner.MESSAGE_OVERHEAD;
+			for (File file : message)
+				size += AttachmentPlanner.attachmentSize(file.length());
+			assertTrue(size <= MAX_SIZE);
+		}
+	}
+
+	@Test
+	public void testOfferFlush() throws IOException {
+		AttachmentPlanner planner = new AttachmentPlanner(MAX_SIZE);
+		File a = createFile("a", 400 * KB);
+		File b = createFile("b", 50 * KB);
+		File c = createFile("c", 300 * KB);
+		File d = createFile("d", 10 * KB);
+
+		assertTrue(planner.offer(a).isEmpty());
+		assertTrue(planner.offer(b).isEmpty());
+		List<List<File>> ready = planner.offer(c);
+		assertEquals(1, ready.size());
+		assertEquals(Arrays.asList(a, c), ready.get(0));
+		assertTrue(planner.offer(d).isEmpty());
+		assertEquals(Arrays.asList(Arrays.asList(b, d)), planner.flush());
+		assertTrue(planner.flush().isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testOfferOversized() throws IOException {
+		new AttachmentPlanner(MAX_SIZE).offer(createFile("big", 2 * MAX_SIZE));
+	}
+}
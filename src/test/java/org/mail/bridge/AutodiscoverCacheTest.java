@@ -0,0 +1,85 @@
+package org.mail.bridge;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mail.bridge.util.ManualClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class AutodiscoverCacheTest extends TempDirFixture {
+
+	private static final String EMAIL = "user@example.com";
+	private static final URI URL = URI.create("https://owa.example.com/ews/exchange.asmx");
+
+	private File file;
+
+	@Before
+	public void setUp() {
+		file = new File(dir, "autodiscover.properties");
+	}
+
+	@Test
+	public void testPutGet() {
+		AutodiscoverCache cache = new AutodiscoverCache(file, 60000);
+		assertNull(cache.get(EMAIL));
+		cache.put(EMAIL, URL);
+		assertEquals(URL, cache.get(EMAIL));
+		assertNull(cache.get("other@example.com"));
+		// Another instance, e.g. of another connection or process, reads the same file
+		assertEquals(URL, new AutodiscoverCache(file, 60000).get(EMAIL));
+		cache.remove(EMAIL);
+		assertNull(cache.get(EMAIL));
+	}
+
+	@Test
+	public void testExpired() {
+		ManualClock clock = new ManualClock();
+		AutodiscoverCache cache = new AutodiscoverCache(file, 60000, clock);
+		cache.put(EMAIL, URL);
+		clock.advance(60000, TimeUnit.MILLISECONDS);
+		assertEquals(URL, cache.get(EMAIL));
+		clock.advance(1, TimeUnit.MILLISECONDS);
+		assertNull(cache.get(EMAIL));
+	}
+
+	@Test
+	public void testInsecureDropped() throws IOException {
+		Files.write(file.toPath(), (EMAIL + ".url=http\\://evil.example.com/ews\n"
+				+ EMAIL + ".time=" + System.currentTimeMillis() + "\n").getBytes("ISO-8859-1"));
+		AutodiscoverCache cache = new AutodiscoverCache(file, 60000);
+		assertNull(cache.get(EMAIL));
+		assertFalse(new String(Files.readAllBytes(file.toPath()), "ISO-8859-1").contains("evil"));
+	}
+
+	@Test
+	public void testPermissions() throws IOException {
+		assumeTrue(dir.toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+		AutodiscoverCache cache = new AutodiscoverCache(file, 60000);
+		cache.put(EMAIL, URL);
+		assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+		assertEquals(1, dir.list().length);
+		// File that other users may have altered isn't trusted
+		Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
+		assertNull(cache.get(EMAIL));
+	}
+
+	@Test
+	public void testDisabled() {
+		AutodiscoverCache cache = new AutodiscoverCache(file, 0);
+		assertFalse(cache.isEnabled());
+		cache.put(EMAIL, URL);
+		assertNull(cache.get(EMAIL));
+		assertFalse(file.exists());
+	}
+}
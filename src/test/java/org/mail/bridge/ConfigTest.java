@@ -0,0 +1,94 @@
+package org.mail.bridge;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class ConfigTest extends TempDirFixture {
+
+	private Config load(Properties properties) throws IOException {
+		File file = new File(dir, "config.properties");
+		try (OutputStream os = new FileOutputStream(file)) {
+			properties.store(os, null);
+		}
+		return new Config(file.getAbsolutePath());
+	}
+
+	private Properties channel(Properties properties, String name, String tag) {
+		properties.setProperty("channel." + name + ".outbox.folder", new File(dir, name + "-out").getAbsolutePath());
+		properties.setProperty("channel." + name + ".inbox.folder", new File(dir, name + "-in").getAbsolutePath());
+		properties.setProperty("channel." + name + ".email.tag.incoming", tag);
+		return properties;
+	}
+
+	@Test
+	public void testNoChannels() throws IOException {
+		Config config = load(new Properties());
+		assertEquals("", config.getChannelName());
+		assertEquals(1, config.getChannels().size());
+		assertSame(config, config.getChannels().get(0));
+	}
+
+	@Test
+	public void testChannels() throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("channels", "a, b");
+		properties.setProperty("email.tag.outgoing", "common");
+		channel(properties, "a", "tag-a");
+		channel(properties, "b", "tag-b");
+		properties.setProperty("channel.b.email.tag.outgoing", "own");
+		List<Config> channels = load(properties).getChannels();
+		assertEquals(2, channels.size());
+		assertEquals("a", channels.get(0).getChannelName());
+		assertEquals("tag-a", channels.get(0).getEmailTagIncoming());
+		assertEquals("common", channels.get(0).getEmailTagOutgoing());
+		assertEquals("b", channels.get(1).getChannelName());
+		assertEquals("own", channels.get(1).getEmailTagOutgoing());
+		assertEquals(new File(dir, "b-out").getAbsolutePath(), channels.get(1).getOutboxFolder());
+	}
+
+	@Test(expected = IOException.class)
+	public void testDuplicateTag() throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("channels", "a,b");
+		channel(properties, "a", "tag");
+		channel(properties, "b", "tag");
+		load(properties);
+	}
+
+	@Test
+	public void testStaticChanges() throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("channels", "a");
+		channel(properties, "a", "tag-a");
+		Config config = load(properties);
+
+		properties.setProperty("outbox.file.regexp", ".*\\.txt");
+		properties.setProperty("channel.a.email.tag.incoming", "other");
+		Config reloaded = load(properties);
+		assertTrue(config.getStaticChanges(reloaded).isEmpty());
+		assertTrue(reloaded.getChannels().get(0).getOutboxFilePattern().matcher("a.txt").matches());
+
+		properties.setProperty("channel.a.outbox.folder", new File(dir, "other").getAbsolutePath());
+		properties.setProperty("ews.email", "other@example.com");
+		Set<String> changes = config.getStaticChanges(load(properties));
+		assertTrue(changes.contains("ews.email"));
+		assertTrue(changes.contains("outbox.folder"));
+		assertFalse(changes.contains("email.tag.incoming"));
+
+		properties.setProperty("channels", "a,b");
+		channel(properties, "b", "tag-b");
+		assertTrue(config.getStaticChanges(load(properties)).contains("channels"));
+	}
+}
@@ -0,0 +1,238 @@
+package org.mail.bridge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class DispatcherTest {
+
+	private static class IntMessage extends Message<Integer> {
+		IntMessage(Integer data) {
+			super(data);
+		}
+	}
+
+	private static class DoneMessage extends Message<Void> {
+		DoneMessage() {
+			super(null);
+		}
+	}
+
+	private static class Recorder implements MonitorCallback<Integer> {
+		private final List<Integer> received = new CopyOnWriteArrayList<>();
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public void onMessage(Message<Integer> message) {
+			started.countDown();
+			// Dispatcher interrupts its thread on stop, but lets the message be handled completely
+			boolean interrupted = false;
+			while (release.getCount() > 0)
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			received.add(message.getData());
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private final Dispatcher dispatcher = new Dispatcher("test");
+	private final CountDownLatch done = new CountDownLatch(1);
+	private Thread thread;
+
+	@Before
+	public void setUp() {
+		dispatcher.addHandler(DoneMessage.class, new MonitorCallback<Void>() {
+			@Override
+			public void onMessage(Message<Void> message) {
+				done.countDown();
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		dispatcher.stop();
+		if (thread != null) thread.join(10000);
+	}
+
+	private void start() {
+		thread = new Thread(dispatcher, "test");
+		thread.start();
+	}
+
+	/**
+	 * Waits until all messages that are posted before are handled, since messages are handled in order.
+	 */
+	private void awaitHandled() throws InterruptedException {
+		dispatcher.post(new DoneMessage());
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testOrder() throws InterruptedException {
+		final List<Integer> received = new CopyOnWriteArrayList<>();
+		dispatcher.addHandler(IntMessage.class, new MonitorCallback<Integer>() {
+			@Override
+			public void onMessage(Message<Integer> message) {
+				received.add(message.getData());
+			}
+		});
+		// Messages posted before dispatching starts wait in queue
+		for (int i = 0; i < 10; ++i)
+			dispatcher.post(new IntMessage(i));
+		assertEquals(10, dispatcher.getQueueDepth());
+		start();
+		for (int i = 10; i < 20; ++i)
+			dispatcher.post(new IntMessage(i));
+		awaitHandled();
+		assertEquals(20, received.size());
+		for (int i = 0; i < 20; ++i)
+			assertEquals(i, (int) received.get(i));
+		assertEquals(0, dispatcher.getQueueDepth());
+		assertEquals(20, dispatcher.getStats().get(IntMessage.class).getCount());
+	}
+
+	@Test
+	public void testHandoff() throws InterruptedException {
+		final List<Thread> threads = new CopyOnWriteArrayList<>();
+		dispatcher.addHandler(IntMessage.class, new MonitorCallback<Integer>() {
+			@Override
+			public void onMessage(Message<Integer> message) {
+				threads.add(Thread.currentThread());
+			}
+		});
+		start();
+		// Dispatcher waits for a message, and it's handled in dispatcher thread rather than in posting one
+		Thread poster = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatcher.post(new IntMessage(1));
+			}
+		});
+		poster.start();
+		poster.join();
+		awaitHandled();
+		assertEquals(Arrays.asList(thread), threads);
+	}
+
+	@Test
+	public void testStop() throws InterruptedException {
+		Recorder recorder = new Recorder();
+		dispatcher.addHandler(IntMessage.class, recorder);
+		start();
+		dispatcher.post(new IntMessage(1));
+		assertTrue(recorder.started.await(10, TimeUnit.SECONDS));
+		dispatcher.post(new IntMessage(2));
+		dispatcher.post(new IntMessage(3));
+		dispatcher.stop();
+		// Message that is being handled is completed, the queued ones are discarded, new ones are ignored
+		recorder.release.countDown();
+		thread.join(10000);
+		assertFalse(thread.isAlive());
+		dispatcher.post(new IntMessage(4));
+		assertEquals(Arrays.asList(1), recorder.received);
+		assertEquals(1, dispatcher.getStats().get(IntMessage.class).getCount());
+	}
+
+	@Test
+	public void testCoalesce() throws InterruptedException {
+		Recorder recorder = new Recorder();
+		dispatcher.addHandler(IntMessage.class, recorder, EventBus.Backpressure.COALESCE, 1);
+		start();
+		dispatcher.post(new IntMessage(1));
+		assertTrue(recorder.started.await(10, TimeUnit.SECONDS));
+		// Message that is posted while the previous one is handled is kept, but repeated ones are not
+		dispatcher.post(new IntMessage(2));
+		dispatcher.post(new IntMessage(3));
+		dispatcher.post(new IntMessage(4));
+		assertEquals(1, dispatcher.getQueueDepth());
+		recorder.release.countDown();
+		awaitHandled();
+		assertEquals(Arrays.asList(1, 2), recorder.received);
+	}
+
+	@Test
+	public void testBlock() throws InterruptedException {
+		final Recorder recorder = new Recorder();
+		dispatcher.addHandler(IntMessage.class, recorder, EventBus.Backpressure.BLOCK, 1);
+		start();
+		dispatcher.post(new IntMessage(1));
+		assertTrue(recorder.started.await(10, TimeUnit.SECONDS));
+		dispatcher.post(new IntMessage(2));
+		final CountDownLatch posted = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatcher.post(new IntMessage(3));
+				posted.countDown();
+			}
+		}).start();
+		assertFalse(posted.await(100, TimeUnit.MILLISECONDS));
+		recorder.release.countDown();
+		assertTrue(posted.await(10, TimeUnit.SECONDS));
+		awaitHandled();
+		assertEquals(Arrays.asList(1, 2, 3), recorder.received);
+	}
+
+	@Test
+	public void testBlockSelf() throws InterruptedException {
+		final List<Integer> received = new CopyOnWriteArrayList<>();
+		dispatcher.addHandler(IntMessage.class, new MonitorCallback<Integer>() {
+			@Override
+			public void onMessage(Message<Integer> message) {
+				received.add(message.getData());
+				// Dispatching thread doesn't wait for its own queue
+				if (message.getData() == 0) {
+					for (int i = 1; i <= 3; ++i)
+						dispatcher.post(new IntMessage(i));
+					dispatcher.post(new DoneMessage());
+				}
+			}
+		}, EventBus.Backpressure.BLOCK, 1);
+		start();
+		dispatcher.post(new IntMessage(0));
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(0, 1, 2, 3), received);
+	}
+
+	@Test
+	public void testStopReleasesBlocked() throws InterruptedException {
+		Recorder recorder = new Recorder();
+		dispatcher.addHandler(IntMessage.class, recorder, EventBus.Backpressure.BLOCK, 1);
+		start();
+		dispatcher.post(new IntMessage(1));
+		assertTrue(recorder.started.await(10, TimeUnit.SECONDS));
+		dispatcher.post(new IntMessage(2));
+		final CountDownLatch posted = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatcher.post(new IntMessage(3));
+				posted.countDown();
+			}
+		}).start();
+		dispatcher.stop();
+		assertTrue(posted.await(10, TimeUnit.SECONDS));
+		recorder.release.countDown();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDropOldestUnsupported() {
+		dispatcher.addHandler(IntMessage.class, new Recorder(), EventBus.Backpressure.DROP_OLDEST, 1);
+	}
+}
@@ -0,0 +1,132 @@
+package org.mail.bridge;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class EventBusTest {
+
+	private static class IntMessage extends Message<Integer> {
+		IntMessage(Integer data) {
+			super(data);
+		}
+	}
+
+	private static class Recorder implements MonitorCallback<Integer> {
+		private final List<Integer> received = new CopyOnWriteArrayList<>();
+		private final List<Thread> threads = new CopyOnWriteArrayList<>();
+		private final CountDownLatch started = new CountDownLatch(1);
+		private final CountDownLatch release;
+		private final Semaphore done = new Semaphore(0);
+
+		Recorder(boolean hold) {
+			release = new CountDownLatch(hold ? 1 : 0);
+		}
+
+		@Override
+		public void onMessage(Message<Integer> message) {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+			received.add(message.getData());
+			threads.add(Thread.currentThread());
+			done.release();
+		}
+	}
+
+	private final EventBus bus = new EventBus("test", 2);
+
+	@After
+	public void tearDown() {
+		bus.shutdown();
+	}
+
+	private void awaitReceived(Recorder recorder, int count) throws InterruptedException {
+		assertTrue(recorder.done.tryAcquire(count, 10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testSync() {
+		Recorder recorder = new Recorder(false);
+		bus.subscribe(IntMessage.class, recorder);
+		bus.post(new IntMessage(1));
+		bus.post(new IntMessage(2));
+		assertEquals(Arrays.asList(1, 2), recorder.received);
+		assertSame(Thread.currentThread(), recorder.threads.get(0));
+	}
+
+	@Test
+	public void testAsyncOrder() throws InterruptedException {
+		Recorder recorder = new Recorder(false);
+		bus.subscribe(IntMessage.class, recorder, EventBus.Backpressure.BLOCK, 100);
+		for (int i = 0; i < 50; ++i)
+			bus.post(new IntMessage(i));
+		awaitReceived(recorder, 50);
+		assertEquals(50, recorder.received.size());
+		for (int i = 0; i < 50; ++i)
+			assertEquals(i, (int) recorder.received.get(i));
+		assertNotSame(Thread.currentThread(), recorder.threads.get(0));
+	}
+
+	@Test
+	public void testDropOldest() throws InterruptedException {
+		Recorder recorder = new Recorder(true);
+		bus.subscribe(IntMessage.class, recorder, EventBus.Backpressure.DROP_OLDEST, 2);
+		bus.post(new IntMessage(0));
+		assertTrue(recorder.started.await(1, TimeUnit.SECONDS));
+		for (int i = 1; i <= 4; ++i)
+			bus.post(new IntMessage(i));
+		recorder.release.countDown();
+		awaitReceived(recorder, 3);
+		assertEquals(Arrays.asList(0, 3, 4), recorder.received);
+	}
+
+	@Test
+	public void testCoalesce() throws InterruptedException {
+		Recorder recorder = new Recorder(true);
+		bus.subscribe(IntMessage.class, recorder, EventBus.Backpressure.COALESCE, 1);
+		bus.post(new IntMessage(0));
+		assertTrue(recorder.started.await(1, TimeUnit.SECONDS));
+		for (int i = 1; i <= 4; ++i)
+			bus.post(new IntMessage(i));
+		recorder.release.countDown();
+		awaitReceived(recorder, 2);
+		assertEquals(Arrays.asList(0, 4), recorder.received);
+	}
+
+	@Test
+	public void testBlock() throws InterruptedException {
+		final Recorder recorder = new Recorder(true);
+		bus.subscribe(IntMessage.class, recorder, EventBus.Backpressure.BLOCK, 1);
+		bus.post(new IntMessage(0));
+		assertTrue(recorder.started.await(1, TimeUnit.SECONDS));
+		bus.post(new IntMessage(1));
+		final CountDownLatch posted = new CountDownLatch(1);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				bus.post(new IntMessage(2));
+				posted.countDown();
+			}
+		}).start();
+		assertFalse(posted.await(100, TimeUnit.MILLISECONDS));
+		recorder.release.countDown();
+		assertTrue(posted.await(1, TimeUnit.SECONDS));
+		awaitReceived(recorder, 3);
+		assertEquals(Arrays.asList(0, 1, 2), recorder.received);
+	}
+}
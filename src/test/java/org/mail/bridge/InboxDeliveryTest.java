@@ -0,0 +1,61 @@
+package org.mail.bridge;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class InboxDeliveryTest extends TempDirFixture {
+
+	private void deliver(InboxDelivery delivery, File target, String content) throws IOException {
+		File temp = InboxDelivery.createTempFile(target);
+		assertTrue(InboxDelivery.isTempFile(temp));
+		Files.write(temp.toPath(), content.getBytes("UTF-8"));
+		assertFalse(target.exists());
+		delivery.deliver(temp, target);
+		assertFalse(temp.exists());
+		assertEquals(content, new String(Files.readAllBytes(target.toPath()), "UTF-8"));
+	}
+
+	@Test
+	public void testTempFile() throws IOException {
+		File target = new File(dir, "a.txt");
+		File temp1 = InboxDelivery.createTempFile(target);
+		File temp2 = InboxDelivery.createTempFile(target);
+		assertEquals(dir, temp1.getParentFile());
+		assertTrue(temp1.getName().startsWith(".a.txt."));
+		assertTrue(InboxDelivery.isTempFile(temp1));
+		assertTrue(temp1.exists());
+		assertNotEquals(temp1, temp2);
+		assertFalse(InboxDelivery.isTempFile(target));
+	}
+
+	@Test
+	public void testDeliver() throws IOException {
+		for (InboxDelivery.Sync sync : InboxDelivery.Sync.values()) {
+			InboxDelivery delivery = new InboxDelivery(sync);
+			deliver(delivery, new File(dir, sync + ".txt"), "content of " + sync);
+			delivery.sync();
+		}
+	}
+
+	@Test
+	public void testReplace() throws IOException {
+		InboxDelivery delivery = new InboxDelivery(InboxDelivery.Sync.BATCH);
+		File target = new File(dir, "a.txt");
+		deliver(delivery, target, "old");
+		target.delete();
+		deliver(delivery, target, "new");
+		File temp = InboxDelivery.createTempFile(target);
+		Files.write(temp.toPath(), "newer".getBytes("UTF-8"));
+		delivery.deliver(temp, target);
+		assertEquals("newer", new String(Files.readAllBytes(target.toPath()), "UTF-8"));
+		delivery.sync();
+	}
+}
@@ -0,0 +1,64 @@
+package org.mail.bridge;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class InboxHandlerTest {
+
+	private static final String SHELL = "/bin/sh";
+
+	private InboxHandler handler;
+
+	private InboxHandler newHandler(String script, long timeout) {
+		return handler = new InboxHandler("test", Arrays.asList(SHELL, "-c", script),
+				Collections.singletonMap("RESULT", "3"), timeout, false);
+	}
+
+	@After
+	public void tearDown() {
+		if (handler != null) handler.stop();
+	}
+
+	@Test
+	public void testBatches() throws IOException, InterruptedException {
+		if (!new File(SHELL).canExecute()) return;
+		newHandler("n=0; while read -r f; do if [ -z \"$f\" ]; then echo \"DONE $n\"; n=0; " +
+				"else echo \"got $f\"; n=$((n + 1)); fi; done", 5000);
+		assertEquals(2, handler.handle(Arrays.asList("a", "b/c")));
+		assertEquals(1, handler.handle(Collections.singletonList("d")));
+	}
+
+	@Test
+	public void testEnvironment() throws IOException, InterruptedException {
+		if (!new File(SHELL).canExecute()) return;
+		newHandler("while read -r f; do [ -z \"$f\" ] && echo \"DONE $RESULT\"; done", 5000);
+		assertEquals(3, handler.handle(Collections.singletonList("a")));
+	}
+
+	@Test
+	public void testRestart() throws IOException, InterruptedException {
+		if (!new File(SHELL).canExecute()) return;
+		// Handler exits after every batch, so that it has to be restarted for the next one
+		newHandler("while read -r f; do [ -z \"$f\" ] && echo \"DONE 0\" && exit 0; done", 5000);
+		assertEquals(0, handler.handle(Collections.singletonList("a")));
+		assertEquals(0, handler.handle(Collections.singletonList("b")));
+		assertEquals(0, handler.handle(Collections.singletonList("c")));
+	}
+
+	@Test(expected = IOException.class)
+	public void testTimeout() throws IOException, InterruptedException {
+		if (!new File(SHELL).canExecute()) throw new IOException();
+		newHandler("cat > /dev/null", 200);
+		handler.handle(Collections.singletonList("a"));
+	}
+}
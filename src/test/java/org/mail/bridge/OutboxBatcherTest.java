@@ -0,0 +1,63 @@
+package org.mail.bridge;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class OutboxBatcherTest extends TempDirFixture {
+
+	@Test
+	public void testNoLimits() throws IOException {
+		OutboxBatcher batcher = new OutboxBatcher(0, 0, 0);
+		File a = createFile("a", 10), b = createFile("b", 10), c = createFile("c", 10);
+		// Files that became ready in one check are sent together
+		assertNull(batcher.add(a, 0));
+		assertNull(batcher.add(b, 0));
+		assertEquals(Arrays.asList(a, b), batcher.poll(0));
+		assertTrue(batcher.isEmpty());
+		assertNull(batcher.add(c, 10));
+		assertEquals(Arrays.asList(c), batcher.poll(10));
+	}
+
+	@Test
+	public void testMaxFiles() throws IOException {
+		OutboxBatcher batcher = new OutboxBatcher(2, 0, 1000);
+		File a = createFile("a", 10), b = createFile("b", 10), c = createFile("c", 10);
+		assertNull(batcher.add(a, 0));
+		assertEquals(Arrays.asList(a, b), batcher.add(b, 10));
+		assertNull(batcher.add(c, 20));
+		assertFalse(batcher.isEmpty());
+	}
+
+	@Test
+	public void testMaxBytes() throws IOException {
+		OutboxBatcher batcher = new OutboxBatcher(0, 100, 1000);
+		File a = createFile("a", 60), b = createFile("b", 50);
+		assertNull(batcher.add(a, 0));
+		assertEquals(Arrays.asList(a, b), batcher.add(b, 10));
+	}
+
+	@Test
+	public void testMaxWait() throws IOException {
+		OutboxBatcher batcher = new OutboxBatcher(10, 0, 1000);
+		File a = createFile("a", 10), b = createFile("b", 10), c = createFile("c", 10);
+		assertNull(batcher.add(a, 100));
+		assertNull(batcher.add(b, 600));
+		assertNull(batcher.poll(1099));
+		List<File> batch = batcher.poll(1100);
+		assertEquals(Arrays.asList(a, b), batch);
+		// Wait starts from the first file of the next batch
+		assertNull(batcher.add(c, 1500));
+		assertNull(batcher.poll(2400));
+		assertEquals(Arrays.asList(c), batcher.poll(2500));
+	}
+}
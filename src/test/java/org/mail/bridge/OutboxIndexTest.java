@@ -0,0 +1,68 @@
+package org.mail.bridge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class OutboxIndexTest extends TempDirFixture {
+
+	private File indexFile;
+
+	@Before
+	public void setUp() {
+		indexFile = new File(dir.getAbsolutePath() + ".idx");
+	}
+
+	@After
+	public void tearDown() {
+		assertTrue(!indexFile.exists() || indexFile.delete());
+	}
+
+	@Test
+	public void testSaveLoad() {
+		File a = new File(dir, "a.txt");
+		File b = new File(dir, "sub" + File.separator + "b c.txt");
+		OutboxIndex index = new OutboxIndex(dir, indexFile);
+		index.put(a, 10, 1000, OutboxIndex.State.QUEUED);
+		index.put(b, 20, 2000, OutboxIndex.State.QUEUED);
+		index.setState(b, OutboxIndex.State.SENT);
+		index.save();
+		assertTrue(indexFile.isFile());
+
+		index = new OutboxIndex(dir, indexFile);
+		assertEquals(2, index.size());
+		assertEquals(OutboxIndex.State.QUEUED, index.getState(a, 10, 1000));
+		assertEquals(OutboxIndex.State.SENT, index.getState(b, 20, 2000));
+	}
+
+	@Test
+	public void testChangedFile() {
+		File a = new File(dir, "a.txt");
+		OutboxIndex index = new OutboxIndex(dir, indexFile);
+		index.put(a, 10, 1000, OutboxIndex.State.SENT);
+		assertNull(index.getState(a, 11, 1000));
+		assertNull(index.getState(a, 10, 1001));
+		assertNull(index.getState(new File(dir, "b.txt"), 10, 1000));
+	}
+
+	@Test
+	public void testRetainRemove() {
+		File a = new File(dir, "a.txt"), b = new File(dir, "b.txt");
+		OutboxIndex index = new OutboxIndex(dir, indexFile);
+		index.put(a, 10, 1000, OutboxIndex.State.SENT);
+		index.put(b, 10, 1000, OutboxIndex.State.SENT);
+		index.retain(Collections.singletonList(b));
+		assertNull(index.getState(a, 10, 1000));
+		assertEquals(OutboxIndex.State.SENT, index.getState(b, 10, 1000));
+		index.remove(b);
+		assertEquals(0, index.size());
+	}
+}
@@ -0,0 +1,56 @@
+package org.mail.bridge;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class ProcessedIndexTest extends TempDirFixture {
+
+	@Test
+	public void testProcessed() {
+		File file = new File(dir, "inbox.processed");
+		ProcessedIndex index = new ProcessedIndex(file);
+		assertTrue(index.getProcessed(Arrays.asList("a", "b")).isEmpty());
+		index.addAll(Arrays.asList("a", "c"));
+		assertEquals(Collections.singleton("a"), index.getProcessed(Arrays.asList("a", "b")));
+
+		index = new ProcessedIndex(file);
+		assertEquals(new HashSet<>(Arrays.asList("a", "c")), index.getProcessed(Arrays.asList("a", "b", "c")));
+	}
+
+	@Test
+	public void testRetain() throws IOException {
+		File file = new File(dir, "inbox.processed");
+		ProcessedIndex index = new ProcessedIndex(file);
+		index.addAll(Arrays.asList("a", "b", "c"));
+		index.retain(new HashSet<>(Arrays.asList("b", "x")));
+		assertEquals(Collections.singletonList("b"), Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+		assertEquals(Collections.singleton("b"), index.getProcessed(Arrays.asList("a", "b", "c")));
+	}
+
+	@Test
+	public void testCache() throws IOException {
+		File file = new File(dir, "inbox.processed");
+		ProcessedIndex index = new ProcessedIndex(file);
+		index.addAll(Arrays.asList("a", "b"));
+		index.cache();
+		// Cached IDs are checked w/o reading the file
+		Files.delete(file.toPath());
+		assertEquals(new HashSet<>(Arrays.asList("a", "b")), index.getProcessed(Arrays.asList("a", "b", "c")));
+		index.addAll(Collections.singletonList("c"));
+		assertEquals(Collections.singleton("c"), index.getProcessed(Collections.singletonList("c")));
+		index.uncache();
+		assertEquals(Collections.singleton("c"), index.getProcessed(Arrays.asList("a", "b", "c")));
+	}
+}
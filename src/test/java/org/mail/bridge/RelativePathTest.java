@@ -0,0 +1,61 @@
+package org.mail.bridge;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class RelativePathTest {
+
+	private File root;
+
+	@Before
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("eb-test-").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		File dir = new File(root, "a");
+		WorkArea.delete(new File(dir, "b"));
+		WorkArea.delete(dir);
+		WorkArea.delete(root);
+	}
+
+	@Test
+	public void testOf() {
+		assertEquals("file.txt", RelativePath.of(root, new File(root, "file.txt")));
+		assertEquals("a/b/file.txt", RelativePath.of(root, new File(root, "a" + File.separator + "b" + File.separator + "file.txt")));
+		assertEquals("file.txt", RelativePath.of(new File(root, "a"), new File(root, "file.txt")));
+	}
+
+	@Test
+	public void testEncodeDecode() {
+		assertEquals("file.txt", RelativePath.encode("file.txt"));
+		assertEquals("a%2Fb%2Ffile.txt", RelativePath.encode("a/b/file.txt"));
+		for (String path : new String[] {"file.txt", "a/b/file.txt", "100%/x%2F.txt", "%25/%", "%2", "a%"})
+			assertEquals(path, RelativePath.decode(RelativePath.encode(path)));
+		assertEquals("a/b", RelativePath.decode("a%2fb"));
+	}
+
+	@Test
+	public void testResolve() throws IOException {
+		File file = RelativePath.resolve(root, "a/b/file.txt");
+		assertEquals(new File(root, "a" + File.separator + "b" + File.separator + "file.txt").getAbsolutePath(),
+				file.getAbsolutePath());
+		assertTrue(file.getParentFile().isDirectory());
+	}
+
+	@Test(expected = IOException.class)
+	public void testResolveOutside() throws IOException {
+		RelativePath.resolve(root, "a/../../file.txt");
+	}
+}
@@ -0,0 +1,123 @@
+package org.mail.bridge;
+
+import org.junit.Test;
+import org.mail.bridge.util.ManualClock;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class ReorderBufferTest extends TempDirFixture {
+
+	private static final long SESSION = 1000;
+	private static final long TIMEOUT = 60000;
+
+	private static ReorderBuffer.Sequence seq(long session, long number) {
+		return new ReorderBuffer.Sequence(session, number);
+	}
+
+	@Test
+	public void testSequence() {
+		assertEquals(seq(SESSION, 7), ReorderBuffer.Sequence.parse("1000-7"));
+		assertNull(ReorderBuffer.Sequence.parse("1000"));
+		assertNull(ReorderBuffer.Sequence.parse("a-b"));
+		assertTrue(seq(SESSION, 1).follows(null));
+		assertFalse(seq(SESSION, 2).follows(null));
+		assertTrue(seq(SESSION, 3).follows(seq(SESSION, 2)));
+		assertFalse(seq(SESSION, 4).follows(seq(SESSION, 2)));
+		assertTrue(seq(SESSION + 1, 1).follows(seq(SESSION, 9)));
+		assertFalse(seq(SESSION - 1, 1).follows(seq(SESSION, 9)));
+	}
+
+	@Test
+	public void testOutOfOrder() {
+		ReorderBuffer<String> buffer = new ReorderBuffer<>(null, TIMEOUT, new ManualClock());
+		assertEquals(Collections.emptyList(), buffer.offer(seq(SESSION, 3), "c"));
+		assertEquals(Collections.emptyList(), buffer.offer(seq(SESSION, 2), "b"));
+		assertEquals(2, buffer.size());
+		assertEquals(TIMEOUT, buffer.getWaitTime());
+		assertEquals(Arrays.asList("a", "b", "c"), buffer.offer(seq(SESSION, 1), "a"));
+		assertEquals(0, buffer.size());
+		assertEquals(-1, buffer.getWaitTime());
+		assertEquals(seq(SESSION, 3), buffer.getLast());
+	}
+
+	@Test
+	public void testLateAndNewSession() {
+		ReorderBuffer<String> buffer = new ReorderBuffer<>(null, TIMEOUT);
+		assertEquals(Arrays.asList("a"), buffer.offer(seq(SESSION, 1), "a"));
+		assertEquals(Arrays.asList("a"), buffer.offer(seq(SESSION, 1), "a"));
+		assertEquals(Collections.emptyList(), buffer.offer(seq(SESSION + 1, 2), "y"));
+		assertEquals(Arrays.asList("x", "y"), buffer.offer(seq(SESSION + 1, 1), "x"));
+		assertEquals(Arrays.asList("b"), buffer.offer(seq(SESSION, 2), "b"));
+	}
+
+	@Test
+	public void testGapTimeout() {
+		ManualClock clock = new ManualClock();
+		ReorderBuffer<String> buffer = new ReorderBuffer<>(null, 50, clock);
+		buffer.offer(seq(SESSION, 1), "a");
+		assertEquals(Collections.emptyList(), buffer.offer(seq(SESSION, 3), "c"));
+		clock.advance(20, TimeUnit.MILLISECONDS);
+		assertEquals(30, buffer.getWaitTime());
+		assertEquals(Collections.emptyList(), buffer.expire());
+		clock.advance(30, TimeUnit.MILLISECONDS);
+		assertEquals(0, buffer.getWaitTime());
+		assertEquals(Arrays.asList("c"), buffer.expire());
+		assertEquals(Arrays.asList("b"), buffer.offer(seq(SESSION, 2), "b"));
+	}
+
+	@Test
+	public void testFlush() {
+		ReorderBuffer<String> buffer = new ReorderBuffer<>(null, TIMEOUT);
+		buffer.offer(seq(SESSION, 5), "e");
+		buffer.offer(seq(SESSION, 3), "c");
+		assertEquals(Arrays.asList("c", "e"), buffer.flush());
+		assertEquals(seq(SESSION, 5), buffer.getLast());
+	}
+
+	@Test
+	public void testDuplicate() {
+		ReorderBuffer<String> buffer = new ReorderBuffer<>(null, TIMEOUT);
+		assertEquals(Collections.emptyList(), buffer.offer(seq(SESSION, 2), "b"));
+		assertEquals(Arrays.asList("b2"), buffer.offer(seq(SESSION, 2), "b2"));
+		assertEquals(Arrays.asList("a", "b"), buffer.offer(seq(SESSION, 1), "a"));
+	}
+
+	@Test
+	public void testClear() {
+		ReorderBuffer<String> buffer = new ReorderBuffer<>(null, TIMEOUT);
+		buffer.offer(seq(SESSION, 1), "a");
+		buffer.offer(seq(SESSION, 3), "c");
+		assertEquals(Arrays.asList("c"), buffer.clear());
+		assertEquals(0, buffer.size());
+		assertEquals(seq(SESSION, 1), buffer.getLast());
+	}
+
+	@Test
+	public void testNoOrdering() {
+		ReorderBuffer<String> buffer = new ReorderBuffer<>(null, 0);
+		assertEquals(Arrays.asList("c"), buffer.offer(seq(SESSION, 3), "c"));
+		assertEquals(Arrays.asList("b"), buffer.offer(seq(SESSION, 2), "b"));
+	}
+
+	@Test
+	public void testPersistence() {
+		File file = new File(dir, "inbox.seq");
+		ReorderBuffer<String> buffer = new ReorderBuffer<>(file, TIMEOUT);
+		buffer.offer(seq(SESSION, 1), "a");
+		buffer.offer(seq(SESSION, 2), "b");
+		assertTrue(file.isFile());
+
+		buffer = new ReorderBuffer<>(file, TIMEOUT);
+		assertEquals(seq(SESSION, 2), buffer.getLast());
+		assertEquals(Collections.emptyList(), buffer.offer(seq(SESSION, 4), "d"));
+		assertEquals(Arrays.asList("c", "d"), buffer.offer(seq(SESSION, 3), "c"));
+	}
+}
@@ -0,0 +1,70 @@
+package org.mail.bridge;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class StorageBudgetTest extends TempDirFixture {
+
+	@Test
+	public void testUnlimited() throws InterruptedException {
+		StorageBudget budget = new StorageBudget("test", dir, 0, 0, false);
+		assertTrue(budget.isUnlimited());
+		budget.acquire(Long.MAX_VALUE / 2);
+		assertTrue(budget.hasRoom(Long.MAX_VALUE / 2));
+		assertFalse(budget.isNearlyFull());
+	}
+
+	@Test
+	public void testMeasured() throws IOException {
+		createFile("a", 600);
+		createFile("b", 300);
+		StorageBudget budget = new StorageBudget("test", dir, 1000, 0, true);
+		assertEquals(900, budget.getUsage());
+		assertTrue(budget.hasRoom(100));
+		assertFalse(budget.hasRoom(101));
+		assertTrue(budget.isNearlyFull());
+	}
+
+	@Test
+	public void testReserved() throws InterruptedException {
+		StorageBudget budget = new StorageBudget("test", dir, 1000, 0, false);
+		// Data that is bigger than budget is allowed when nothing else is reserved
+		budget.acquire(1500);
+		assertFalse(budget.hasRoom(0));
+		budget.release(1500);
+		budget.acquire(700);
+		assertEquals(700, budget.getUsage());
+		assertFalse(budget.hasRoom(400));
+		budget.release(700);
+		assertTrue(budget.hasRoom(1000));
+	}
+
+	@Test
+	public void testEvict() throws IOException {
+		File old = createFile("old.z01", 10);
+		File recent = createFile("recent.z01", 10);
+		File other = createFile("other", 10);
+		assertTrue(old.setLastModified(System.currentTimeMillis() - 60000));
+		assertTrue(other.setLastModified(System.currentTimeMillis() - 60000));
+		StorageBudget budget = new StorageBudget("test", dir, 1000, 0, true);
+		assertEquals(30, budget.getUsage());
+		assertEquals(1, budget.evict(30000, new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().endsWith(".z01");
+			}
+		}));
+		assertFalse(old.exists());
+		assertTrue(recent.exists());
+		assertTrue(other.exists());
+		assertEquals(20, budget.getUsage());
+	}
+}
@@ -0,0 +1,40 @@
+package org.mail.bridge;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+/**
+ * Base of tests that work with files: temporary folder is created before every test and removed after it.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public abstract class TempDirFixture {
+
+	protected File dir;
+
+	@Before
+	public void createTempDir() throws IOException {
+		dir = Files.createTempDirectory("eb-test-").toFile();
+	}
+
+	@After
+	public void deleteTempDir() {
+		WorkArea.delete(dir);
+	}
+
+	/**
+	 * Creates file of given size in temporary folder, content of file is zeros.
+	 */
+	protected File createFile(String name, long size) throws IOException {
+		File file = new File(dir, name);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(size);
+		}
+		return file;
+	}
+}
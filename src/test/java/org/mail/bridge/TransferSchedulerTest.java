@@ -0,0 +1,119 @@
+package org.mail.bridge;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mail.bridge.TransferScheduler.Priority.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class TransferSchedulerTest {
+
+	private static class Steps extends TransferScheduler.Transfer {
+		private final StringBuilder log;
+		private int left;
+
+		Steps(String name, TransferScheduler.Priority priority, int steps, StringBuilder log) {
+			super(name, priority);
+			this.left = steps;
+			this.log = log;
+		}
+
+		@Override
+		boolean hasNext() {
+			return left > 0;
+		}
+
+		@Override
+		void next() {
+			--left;
+			log.append(getName());
+		}
+
+		@Override
+		void complete() {
+		}
+	}
+
+	/**
+	 * Performs steps the same way scheduler thread does, but in the calling thread.
+	 */
+	private static void drain(TransferScheduler scheduler) {
+		for (TransferScheduler.Transfer transfer; (transfer = scheduler.poll()) != null; ) {
+			transfer.next();
+			if (transfer.hasNext()) scheduler.add(transfer);
+			else transfer.complete();
+		}
+	}
+
+	private static String repeat(String s, int count) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < count; ++i)
+			result.append(s);
+		return result.toString();
+	}
+
+	@Test
+	public void testRoundRobin() {
+		TransferScheduler scheduler = new TransferScheduler("test", false);
+		StringBuilder log = new StringBuilder();
+		scheduler.add(new Steps("a", NORMAL, 3, log));
+		scheduler.add(new Steps("b", NORMAL, 2, log));
+		scheduler.add(new Steps("c", NORMAL, 1, log));
+		drain(scheduler);
+		assertEquals("abcaba", log.toString());
+		assertNull(scheduler.poll());
+	}
+
+	@Test
+	public void testPriority() {
+		TransferScheduler scheduler = new TransferScheduler("test", false);
+		StringBuilder log = new StringBuilder();
+		scheduler.add(new Steps("L", LOW, 1, log));
+		scheduler.add(new Steps("N", NORMAL, 1, log));
+		scheduler.add(new Steps("H", HIGH, 2, log));
+		drain(scheduler);
+		assertEquals("HHNL", log.toString());
+	}
+
+	@Test
+	public void testStarvation() {
+		TransferScheduler scheduler = new TransferScheduler("test", false);
+		StringBuilder log = new StringBuilder();
+		scheduler.add(new Steps("H", HIGH, 30, log));
+		scheduler.add(new Steps("N", NORMAL, 2, log));
+		scheduler.add(new Steps("L", LOW, 2, log));
+		drain(scheduler);
+		// Urgent lane is served first, but every lower lane gets its turn after being skipped STARVATION_LIMIT times
+		String h = repeat("H", TransferScheduler.STARVATION_LIMIT);
+		assertEquals(h + "NL" + h.substring(1) + "NL" + repeat("H", 30 - 2 * TransferScheduler.STARVATION_LIMIT + 1),
+				log.toString());
+	}
+
+	@Test
+	public void testFailedCompletion() throws InterruptedException {
+		TransferScheduler scheduler = new TransferScheduler("test", false);
+		final CountDownLatch completed = new CountDownLatch(1);
+		try {
+			scheduler.submit(new Steps("a", NORMAL, 1, new StringBuilder()) {
+				@Override
+				void complete() {
+					throw new IllegalStateException("test");
+				}
+			});
+			scheduler.submit(new Steps("b", NORMAL, 1, new StringBuilder()) {
+				@Override
+				void complete() {
+					completed.countDown();
+				}
+			});
+			assertTrue(completed.await(10, TimeUnit.SECONDS));
+		} finally {
+			scheduler.stop();
+		}
+	}
+}
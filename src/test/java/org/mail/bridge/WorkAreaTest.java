@@ -0,0 +1,54 @@
+package org.mail.bridge;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class WorkAreaTest extends TempDirFixture {
+
+	@Test
+	public void testLifecycle() throws IOException {
+		WorkArea area = new WorkArea(dir, false);
+		File root = area.getRoot();
+		assertEquals(dir, root.getParentFile());
+		File temp = area.createDir("test-");
+		assertEquals(root, temp.getParentFile());
+		assertTrue(new File(temp, "sub").mkdir());
+		Files.write(new File(temp, "sub/file").toPath(), new byte[10]);
+		area.remove(temp);
+		area.close();
+		assertFalse(temp.exists());
+		assertFalse(root.exists());
+	}
+
+	@Test
+	public void testSweep() throws IOException {
+		File orphan = new File(dir, "eb-work-orphan");
+		assertTrue(orphan.mkdir());
+		Files.write(new File(orphan, ".lock").toPath(), new byte[0]);
+		File legacy = new File(dir, "eb-attach-legacy");
+		assertTrue(legacy.mkdir());
+		assertTrue(legacy.setLastModified(System.currentTimeMillis() - 2 * 24 * 3600 * 1000L));
+		File recent = new File(dir, "eb-unzip-recent");
+		assertTrue(recent.mkdir());
+		File other = new File(dir, "other");
+		assertTrue(other.mkdir());
+
+		WorkArea live = new WorkArea(dir, false);
+		WorkArea area = new WorkArea(dir, false);
+		area.close();
+		assertFalse(orphan.exists());
+		assertFalse(legacy.exists());
+		assertTrue(recent.exists());
+		assertTrue(other.exists());
+		assertTrue(live.getRoot().exists());
+		live.close();
+	}
+}
@@ -0,0 +1,41 @@
+package org.mail.bridge.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class BloomFilterTest {
+
+	@Test
+	public void testNoFalseNegatives() {
+		BloomFilter filter = new BloomFilter(1000);
+		for (int i = 0; i < 1000; ++i)
+			filter.add("id-" + i);
+		for (int i = 0; i < 1000; ++i)
+			assertTrue(filter.mightContain("id-" + i));
+		assertFalse(filter.isFull());
+	}
+
+	@Test
+	public void testFalsePositiveRate() {
+		BloomFilter filter = new BloomFilter(1000);
+		for (int i = 0; i < 1000; ++i)
+			filter.add("id-" + i);
+		int positives = 0;
+		for (int i = 0; i < 10000; ++i)
+			if (filter.mightContain("other-" + i)) ++positives;
+		assertTrue("False positives: " + positives, positives < 300);
+	}
+
+	@Test
+	public void testFull() {
+		BloomFilter filter = new BloomFilter(64);
+		for (int i = 0; i <= 64; ++i)
+			filter.add("id-" + i);
+		assertTrue(filter.isFull());
+		assertEquals(65, filter.getCount());
+	}
+}
@@ -0,0 +1,27 @@
+package org.mail.bridge.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clock that moves only when test advances it.
+ *
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class ManualClock implements Clock {
+
+	private long nanos = TimeUnit.DAYS.toNanos(1);
+
+	@Override
+	public synchronized long millis() {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	@Override
+	public synchronized long nanoTime() {
+		return nanos;
+	}
+
+	public synchronized void advance(long duration, TimeUnit unit) {
+		nanos += unit.toNanos(duration);
+	}
+}
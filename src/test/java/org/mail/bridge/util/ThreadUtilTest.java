@@ -0,0 +1,55 @@
+package org.mail.bridge.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class ThreadUtilTest {
+
+	@Test
+	public void testPlatformThread() {
+		Thread thread = ThreadUtil.newThread(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, "test", true, false);
+		assertEquals("test", thread.getName());
+		assertTrue(thread.isDaemon());
+		assertEquals(Thread.State.NEW, thread.getState());
+	}
+
+	@Test
+	public void testVirtualThread() throws InterruptedException {
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread thread = ThreadUtil.newThread(new Runnable() {
+			@Override
+			public void run() {
+				done.set(true);
+			}
+		}, "test", false, true);
+		assertEquals("test", thread.getName());
+		// Virtual threads are always daemons, platform one is created as requested
+		assertEquals(ThreadUtil.isVirtualSupported(), thread.isDaemon());
+		thread.start();
+		thread.join();
+		assertTrue(done.get());
+	}
+
+	@Test
+	public void testThreadFactory() {
+		ThreadFactory factory = ThreadUtil.newThreadFactory("pool", true, false);
+		Runnable r = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+		assertEquals("pool-1", factory.newThread(r).getName());
+		assertEquals("pool-2", factory.newThread(r).getName());
+	}
+}
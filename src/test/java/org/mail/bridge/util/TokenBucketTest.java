@@ -0,0 +1,51 @@
+package org.mail.bridge.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="mailto:max@dominichenko.com">Maksym Dominichenko</a>
+ */
+public class TokenBucketTest {
+
+	private final ManualClock clock = new ManualClock();
+
+	@Test
+	public void testUnlimited() {
+		TokenBucket bucket = new TokenBucket(0, 10);
+		assertTrue(bucket.isUnlimited());
+		assertEquals(0, bucket.reserve(Long.MAX_VALUE));
+		assertEquals(Double.POSITIVE_INFINITY, bucket.getAvailable(), 0);
+	}
+
+	@Test
+	public void testBurst() {
+		TokenBucket bucket = new TokenBucket(10, 100, clock);
+		assertEquals(0, bucket.reserve(60));
+		assertEquals(0, bucket.reserve(40));
+		assertEquals(TimeUnit.SECONDS.toNanos(1), bucket.reserve(10));
+	}
+
+	@Test
+	public void testDebt() {
+		TokenBucket bucket = new TokenBucket(100, 100, clock);
+		assertEquals(0, bucket.reserve(1000));
+		assertEquals(-900, bucket.getAvailable(), 0);
+		assertEquals(TimeUnit.SECONDS.toNanos(10), bucket.reserve(100));
+	}
+
+	@Test
+	public void testRefill() {
+		TokenBucket bucket = new TokenBucket(1000, 50, clock);
+		bucket.reserve(50);
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(20), bucket.reserve(20));
+		clock.advance(10, TimeUnit.MILLISECONDS);
+		assertEquals(-10, bucket.getAvailable(), 1e-9);
+		clock.advance(100, TimeUnit.MILLISECONDS);
+		// Never more than capacity
+		assertEquals(50, bucket.getAvailable(), 0);
+	}
+}